@@ -0,0 +1,170 @@
+package ads2.ss14.etsppc;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JDK Flight Recorder events behind {@link SolverEvents}, loaded by it
+ * if present. Not part of the solver sources, since it needs
+ * <code>jdk.jfr</code>: compile it after them with a JDK that has it.
+ */
+final class JfrRecorder extends SolverEvents.Recorder {
+
+	private final EventType incumbentType = EventType.getEventType(Incumbent.class);
+	private final EventType phaseType = EventType.getEventType(Phase.class);
+	private final EventType progressType = EventType.getEventType(Progress.class);
+	private final EventType parseType = EventType.getEventType(Parse.class);
+
+	@Override
+	void incumbent(String solver, double cost, double previous, int cities) {
+		if (!incumbentType.isEnabled()) return;
+		Incumbent event = new Incumbent();
+		event.solver = solver;
+		event.cost = cost;
+		event.previous = previous;
+		event.cities = cities;
+		event.commit();
+	}
+
+	@Override
+	Object beginPhase() {
+		if (!phaseType.isEnabled()) return null;
+		Phase event = new Phase();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	void endPhase(Object event, String solver, String phase, int cities) {
+		Phase e = (Phase) event;
+		e.solver = solver;
+		e.phase = phase;
+		e.cities = cities;
+		e.commit();
+	}
+
+	@Override
+	boolean isProgressEnabled() {
+		return progressType.isEnabled();
+	}
+
+	@Override
+	void progress(long nodes, double nodesPerSecond, int depth, int prefix, double incumbent, double gap) {
+		Progress event = new Progress();
+		event.nodes = nodes;
+		event.nodesPerSecond = nodesPerSecond;
+		event.depth = depth;
+		event.prefix = prefix;
+		event.incumbent = incumbent;
+		event.gap = gap;
+		event.commit();
+	}
+
+	@Override
+	Object beginParse() {
+		if (!parseType.isEnabled()) return null;
+		Parse event = new Parse();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	void endParse(Object event, String source, int cities, int constraints) {
+		Parse e = (Parse) event;
+		e.source = source;
+		e.cities = cities;
+		e.constraints = constraints;
+		e.commit();
+	}
+
+	@Name("ads2.etsppc.Incumbent")
+	@Label("Incumbent Update")
+	@Category("ETSPPC")
+	@Description("A solver found a better tour")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class Incumbent extends Event {
+		@Label("Solver")
+		String solver;
+
+		@Label("Cost")
+		double cost;
+
+		@Label("Previous Cost")
+		@Description("Infinity if no complete tour was known")
+		double previous;
+
+		@Label("Cities")
+		int cities;
+	}
+
+	@Name("ads2.etsppc.Phase")
+	@Label("Solver Phase")
+	@Category("ETSPPC")
+	@Description("Duration of a phase of a solver run")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class Phase extends Event {
+		@Label("Solver")
+		String solver;
+
+		@Label("Phase")
+		String phase;
+
+		@Label("Cities")
+		int cities;
+	}
+
+	@Name("ads2.etsppc.Progress")
+	@Label("Search Progress")
+	@Category("ETSPPC")
+	@Description("Periodic sample of a running branch-and-bound search")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class Progress extends Event {
+		@Label("Nodes")
+		long nodes;
+
+		@Label("Nodes per Second")
+		double nodesPerSecond;
+
+		@Label("Stack Depth")
+		@Description("Number of nested left branches")
+		int depth;
+
+		@Label("Prefix Length")
+		int prefix;
+
+		@Label("Incumbent")
+		double incumbent;
+
+		@Label("Gap")
+		@Description("Distance of the incumbent from a simple lower bound, relative to the incumbent")
+		@Percentage
+		double gap;
+	}
+
+	@Name("ads2.etsppc.Parse")
+	@Label("Instance Parse")
+	@Category("ETSPPC")
+	@Description("Reading an instance in TSPLIB format")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class Parse extends Event {
+		@Label("Source")
+		String source;
+
+		@Label("Cities")
+		int cities;
+
+		@Label("Constraints")
+		int constraints;
+	}
+}
@@ -0,0 +1,54 @@
+package ads2.ss14.etsppc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Crash-safe replacement of small files.
+ */
+final class AtomicFile {
+
+	/**
+	 * Writes <code>data</code> to a temporary file next to <code>file</code>,
+	 * forces it to disk and atomically renames it, so a crash leaves either
+	 * the previous or the new content behind.
+	 *
+	 * @param file      the file to replace
+	 * @param data      the new content
+	 * @throws IOException if writing fails
+	 */
+	static void write(File file, byte[] data) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			fos.write(data);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		// make the rename itself durable, not supported on every platform
+		File dir = file.getAbsoluteFile().getParentFile();
+		try {
+			FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			Main.printDebug("could not sync " + dir + ": " + e);
+		}
+	}
+
+	private AtomicFile() {
+	}
+}
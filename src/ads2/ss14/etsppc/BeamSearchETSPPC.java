@@ -0,0 +1,553 @@
+package ads2.ss14.etsppc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Restricted dynamic program for mid-size instances. Like
+ * {@link HeldKarpETSPPC} it extends paths over states of visited set, last
+ * city and first city, one city per layer and only by cities whose
+ * predecessors are all visited, but each layer keeps only the
+ * <code>width</code> cheapest states.
+ *
+ * <p>
+ * A layer is expanded in parallel, each thread expanding a range of states.
+ * The candidates are then merged in parallel as well, each thread owning the
+ * states whose hash falls into its partition: equal states are found through
+ * an open addressing table of candidate references and only the cheapest
+ * one is kept.
+ * </p>
+ *
+ * <p>
+ * {@link #run()} runs a single beam. {@link #proceed()} runs a beam and then
+ * doubles the width, so repeated calls give better tours as long as the
+ * candidates of a layer fit into memory.
+ * </p>
+ */
+public class BeamSearchETSPPC extends AbstractETSPPC {
+
+	public static final int DEFAULT_WIDTH = 256;
+
+	/** the width is not doubled further once a layer could hold more candidates */
+	private static final int MAX_CANDIDATES = 1 << 20;
+
+	private final Location[] cities;
+	private final double[][] dist;
+	private final int[][] predecessors;
+	private final int threads;
+	/** longs per visited set */
+	private final int words;
+
+	/** random keys whose xor identifies a state */
+	private final long[] setKey;
+	private final long[] lastKey;
+	private final long[] firstKey;
+
+	private int width;
+	private volatile boolean stopped;
+	/** cost of the best tour known, also from other solvers */
+	private volatile double bound = Double.POSITIVE_INFINITY;
+	private SolutionListener solutionListener;
+
+	/* the current layer */
+	private long[] bits;
+	private long[] hash;
+	private int[] last;
+	private int[] first;
+	private double[] cost;
+	private int size;
+
+	/** candidates of the next layer, one set per thread */
+	private Candidates[] produced;
+
+	/** per layer, the state of the previous layer each state was extended from */
+	private int[][] parents;
+	/** per layer, the city each state ends in */
+	private int[][] ends;
+
+	/**
+	 * Candidates produced by one thread. A candidate extends state
+	 * <code>parent</code> of the current layer by <code>city</code>.
+	 */
+	private static final class Candidates {
+		int[] parent = new int[64];
+		int[] city = new int[64];
+		double[] cost = new double[64];
+		long[] hash = new long[64];
+		int size;
+
+		void add(int p, int c, double d, long h) {
+			if (size == parent.length) {
+				int capacity = size * 2;
+				parent = Arrays.copyOf(parent, capacity);
+				city = Arrays.copyOf(city, capacity);
+				cost = Arrays.copyOf(cost, capacity);
+				hash = Arrays.copyOf(hash, capacity);
+			}
+			parent[size] = p;
+			city[size] = c;
+			cost[size] = d;
+			hash[size] = h;
+			size++;
+		}
+	}
+
+	public BeamSearchETSPPC(ETSPPCInstance instance) {
+		this(instance, DEFAULT_WIDTH, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param instance      the instance to solve
+	 * @param width         number of states kept per layer
+	 * @param threads       number of threads expanding a layer
+	 */
+	public BeamSearchETSPPC(ETSPPCInstance instance, int width, int threads) {
+		this.width = Math.max(1, width);
+		this.threads = Math.max(1, threads);
+
+		int n = instance.getAllLocations().size();
+		cities = new Location[n];
+		Map<Integer, Integer> index = new HashMap<Integer, Integer>(n * 2);
+		int i = 0;
+		for (Location l : instance.getAllLocations().values()) {
+			cities[i] = l;
+			index.put(l.getCityId(), i++);
+		}
+		dist = new double[n][n];
+		for (i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				dist[i][j] = cities[i].distanceTo(cities[j]);
+			}
+		}
+
+		List<List<Integer>> preds = new ArrayList<List<Integer>>(n);
+		for (i = 0; i < n; i++) {
+			preds.add(new ArrayList<Integer>());
+		}
+		for (PrecedenceConstraint pc : instance.getConstraints()) {
+			preds.get(index.get(pc.getSecond())).add(index.get(pc.getFirst()));
+		}
+		predecessors = LocalSearchETSPPC.toArrays(preds);
+
+		words = (n + 63) >>> 6;
+		Random random = new Random(n);
+		setKey = new long[n];
+		lastKey = new long[n];
+		firstKey = new long[n];
+		for (i = 0; i < n; i++) {
+			setKey[i] = random.nextLong();
+			lastKey[i] = random.nextLong();
+			firstKey[i] = random.nextLong();
+		}
+	}
+
+	@Override
+	public void run() {
+		// a single thread expands inline
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		try {
+			beam(pool);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("expanding a layer failed", e.getCause());
+		} finally {
+			if (pool != null) pool.shutdownNow();
+			// only needed while a beam runs
+			bits = null;
+			parents = ends = null;
+			produced = null;
+		}
+	}
+
+	/**
+	 * Runs a beam and doubles the width if it was not stopped. A
+	 * {@link #stop()} must have been cleared by {@link #clearStop()}.
+	 *
+	 * @return      true if the width cannot grow any further
+	 */
+	boolean proceed() {
+		run();
+		if (stopped) return false;
+		if ((long) width * 2 * cities.length > MAX_CANDIDATES) return true;
+		width *= 2;
+		return false;
+	}
+
+	/**
+	 * Asks a running beam to return as soon as possible. May be called from
+	 * any thread.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Lets the next {@link #proceed()} run. Only the caller that decides
+	 * when to stop may call this, so that no stop gets lost.
+	 */
+	void clearStop() {
+		stopped = false;
+	}
+
+	/**
+	 * Prunes states that cannot lead to a tour cheaper than
+	 * <code>bound</code>. May be called from any thread.
+	 *
+	 * @param bound     cost of a known tour
+	 */
+	public void updateBound(double bound) {
+		if (bound < this.bound) this.bound = bound;
+	}
+
+	/**
+	 * @param listener      notified whenever a better tour is found
+	 */
+	public void setSolutionListener(SolutionListener listener) {
+		solutionListener = listener;
+	}
+
+	/**
+	 * @return      the width of the next beam
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	private void beam(ExecutorService pool) throws InterruptedException, ExecutionException {
+		int n = cities.length;
+		if (n == 0) return;
+		parents = new int[n][];
+		ends = new int[n][];
+
+		// every city without predecessors may start the tour
+		int starts = 0;
+		for (int c = 0; c < n; c++) {
+			if (predecessors[c].length == 0) starts++;
+		}
+		allocate(Math.min(starts, width));
+		ends[0] = new int[last.length];
+		parents[0] = new int[last.length];
+		for (int c = 0; c < n && size < ends[0].length; c++) {
+			if (predecessors[c].length > 0) continue;
+			bits[size * words + (c >>> 6)] |= 1L << c;
+			hash[size] = setKey[c] ^ lastKey[c] ^ firstKey[c];
+			last[size] = first[size] = c;
+			ends[0][size] = c;
+			size++;
+		}
+
+		produced = new Candidates[threads];
+		for (int t = 0; t < threads; t++) {
+			produced[t] = new Candidates();
+		}
+
+		for (int layer = 1; layer < n; layer++) {
+			if (stopped || size == 0) return;
+			expand(pool);
+			select(layer, merge(pool));
+		}
+		if (stopped || size == 0) return;
+
+		int best = -1;
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (int s = 0; s < size; s++) {
+			double c = cost[s] + dist[last[s]][first[s]];
+			if (c < bestCost) {
+				bestCost = c;
+				best = s;
+			}
+		}
+		report(best);
+	}
+
+	private void allocate(int states) {
+		bits = new long[states * words];
+		hash = new long[states];
+		last = new int[states];
+		first = new int[states];
+		cost = new double[states];
+		size = 0;
+	}
+
+	/**
+	 * Expands every state of the current layer by every city that may follow
+	 * it, each thread a range of states.
+	 */
+	private void expand(ExecutorService pool) throws InterruptedException, ExecutionException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threads);
+		for (int t = 0; t < threads; t++) {
+			final Candidates out = produced[t];
+			final int from = (int) ((long) size * t / threads);
+			final int to = (int) ((long) size * (t + 1) / threads);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					out.size = 0;
+					for (int s = from; s < to; s++) {
+						expand(s, out);
+					}
+					return null;
+				}
+			});
+		}
+		invokeAll(pool, tasks);
+	}
+
+	private void expand(int s, Candidates out) {
+		int base = s * words;
+		double pruneAt = bound;
+		double[] row = dist[last[s]];
+		double[] back = null;
+
+		for (int c = 0; c < cities.length; c++) {
+			if ((bits[base + (c >>> 6)] & (1L << c)) != 0) continue;
+			boolean ready = true;
+			for (int p : predecessors[c]) {
+				if ((bits[base + (p >>> 6)] & (1L << p)) == 0) {
+					ready = false;
+					break;
+				}
+			}
+			if (!ready) continue;
+
+			double d = cost[s] + row[c];
+			if (back == null) back = dist[first[s]];
+			// going back to the first city costs at least the direct distance
+			if (d + back[c] >= pruneAt) continue;
+			out.add(s, c, d, hash[s] ^ lastKey[last[s]] ^ lastKey[c] ^ setKey[c]);
+		}
+	}
+
+	/**
+	 * Merges equal candidates, each thread the candidates whose hash falls
+	 * into its partition.
+	 *
+	 * @return      references to the remaining candidates, thread in the high
+	 *              and index in the low half, per partition
+	 */
+	private long[][] merge(ExecutorService pool) throws InterruptedException, ExecutionException {
+		List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>(threads);
+		for (int t = 0; t < threads; t++) {
+			final int partition = t;
+			tasks.add(new Callable<long[]>() {
+				@Override
+				public long[] call() {
+					return merge(partition);
+				}
+			});
+		}
+		return invokeAll(pool, tasks).toArray(new long[threads][]);
+	}
+
+	/**
+	 * @param pool      runs the tasks, or null to run them on this thread
+	 * @return          the results in task order
+	 */
+	private static <T> List<T> invokeAll(ExecutorService pool, List<Callable<T>> tasks) throws InterruptedException, ExecutionException {
+		List<T> results = new ArrayList<T>(tasks.size());
+		if (pool == null) {
+			for (Callable<T> task : tasks) {
+				try {
+					results.add(task.call());
+				} catch (Exception e) {
+					throw new ExecutionException(e);
+				}
+			}
+			return results;
+		}
+		for (Future<T> f : pool.invokeAll(tasks)) {
+			results.add(f.get());
+		}
+		return results;
+	}
+
+	private long[] merge(int partition) {
+		int count = 0;
+		for (Candidates c : produced) {
+			for (int i = 0; i < c.size; i++) {
+				if (partitionOf(c.hash[i]) == partition) count++;
+			}
+		}
+
+		// open addressing, a slot holds thread + 1 and index of the cheapest candidate so far
+		int capacity = Integer.highestOneBit(Math.max(8, count * 2 - 1)) << 1;
+		int mask = capacity - 1;
+		int[] slotThread = new int[capacity];
+		int[] slotIndex = new int[capacity];
+		int[] used = new int[count];
+		int usedSize = 0;
+
+		for (int t = 0; t < produced.length; t++) {
+			Candidates c = produced[t];
+			for (int i = 0; i < c.size; i++) {
+				long h = c.hash[i];
+				if (partitionOf(h) != partition) continue;
+
+				int slot = (int) h & mask;
+				while (true) {
+					if (slotThread[slot] == 0) {
+						slotThread[slot] = t + 1;
+						slotIndex[slot] = i;
+						used[usedSize++] = slot;
+						break;
+					}
+					Candidates o = produced[slotThread[slot] - 1];
+					int j = slotIndex[slot];
+					if (o.hash[j] == h && sameState(c, i, o, j)) {
+						if (c.cost[i] < o.cost[j]) {
+							slotThread[slot] = t + 1;
+							slotIndex[slot] = i;
+						}
+						break;
+					}
+					slot = (slot + 1) & mask;
+				}
+			}
+		}
+
+		long[] kept = new long[usedSize];
+		for (int k = 0; k < usedSize; k++) {
+			kept[k] = (long) (slotThread[used[k]] - 1) << 32 | slotIndex[used[k]];
+		}
+		return kept;
+	}
+
+	private int partitionOf(long h) {
+		return (int) ((h >>> 40) % threads);
+	}
+
+	/**
+	 * Two candidates are the same state if they end in the same city, start
+	 * in the same city and extend the same visited set.
+	 */
+	private boolean sameState(Candidates a, int i, Candidates b, int j) {
+		if (a.city[i] != b.city[j]) return false;
+		int p = a.parent[i];
+		int q = b.parent[j];
+		if (p == q) return true;
+		if (first[p] != first[q]) return false;
+		for (int w = 0; w < words; w++) {
+			if (bits[p * words + w] != bits[q * words + w]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the current layer by the <code>width</code> cheapest merged
+	 * candidates.
+	 */
+	private void select(int layer, long[][] kept) {
+		int total = 0;
+		for (long[] k : kept) {
+			total += k.length;
+		}
+
+		double cutoff = Double.POSITIVE_INFINITY;
+		if (total > width) {
+			double[] costs = new double[total];
+			int i = 0;
+			for (int t = 0; t < kept.length; t++) {
+				for (long ref : kept[t]) {
+					costs[i++] = candidates(ref).cost[(int) ref];
+				}
+			}
+			Arrays.sort(costs);
+			cutoff = costs[width - 1];
+		}
+		int selected = Math.min(total, width);
+
+		long[] oldBits = bits;
+		int[] oldFirst = first;
+		allocate(selected);
+		parents[layer] = new int[selected];
+		ends[layer] = new int[selected];
+
+		// strictly cheaper first, then ties up to the width
+		for (int pass = 0; pass < 2 && size < selected; pass++) {
+			for (long[] k : kept) {
+				for (long ref : k) {
+					if (size == selected) break;
+					Candidates c = candidates(ref);
+					int i = (int) ref;
+					if (pass == 0 ? !(c.cost[i] < cutoff) : c.cost[i] != cutoff) continue;
+
+					int p = c.parent[i];
+					int city = c.city[i];
+					System.arraycopy(oldBits, p * words, bits, size * words, words);
+					bits[size * words + (city >>> 6)] |= 1L << city;
+					hash[size] = c.hash[i];
+					last[size] = city;
+					first[size] = oldFirst[p];
+					cost[size] = c.cost[i];
+					parents[layer][size] = p;
+					ends[layer][size] = city;
+					size++;
+				}
+			}
+		}
+	}
+
+	private Candidates candidates(long ref) {
+		return produced[(int) (ref >>> 32)];
+	}
+
+	/**
+	 * Rebuilds the tour of state <code>s</code> of the last layer and reports
+	 * it with its cost computed like the checker does.
+	 */
+	private void report(int s) {
+		int n = cities.length;
+		Location[] tour = new Location[n];
+		for (int layer = n - 1; layer >= 0; layer--) {
+			tour[layer] = cities[ends[layer][s]];
+			s = parents[layer][s];
+		}
+
+		List<Location> solution = new ArrayList<Location>(Arrays.asList(tour));
+		double value = SolutionVerifier.objectiveValue(solution);
+		double previous = getBestSolution() == null ? Double.POSITIVE_INFINITY : getBestSolution().getUpperBound();
+		if (setSolution(value, solution)) {
+			SolverEvents.incumbent(this, value, previous, solution.size());
+			updateBound(value);
+			if (solutionListener != null) solutionListener.improved(value, solution);
+		}
+	}
+
+	/**
+	 * Usage: <code>BeamSearchETSPPC instance [width] [threads]</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: BeamSearchETSPPC <instance> [width] [threads]");
+			System.exit(1);
+		}
+
+		ETSPPCInstance instance = new TspLibReader(args[0]).readInstance();
+		int width = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_WIDTH;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		BeamSearchETSPPC solver = new BeamSearchETSPPC(new ETSPPCInstance(instance), width, threads);
+		long begin = System.currentTimeMillis();
+		solver.run();
+
+		AbstractETSPPC.BnBSolution sol = solver.getBestSolution();
+		if (sol == null) {
+			System.out.println("no tour");
+			return;
+		}
+		SolutionVerifier.Result check = new SolutionVerifier(instance).verify(sol.getBestSolution(), sol.getUpperBound());
+		System.out.println(sol.getUpperBound() + " in " + (System.currentTimeMillis() - begin) + " ms"
+				+ (check.isValid() ? "" : " INVALID " + check.getViolations()));
+	}
+}
@@ -0,0 +1,114 @@
+package ads2.ss14.etsppc;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread that periodically asks the search for a snapshot and
+ * writes it as a {@link SearchCheckpoint}.
+ *
+ * <p>
+ * The search only polls {@link #isRequested()} and hands over a cheap,
+ * immutable snapshot with {@link #offer(Callable)}; encoding and disk I/O
+ * happen on this thread, so the search never waits for the disk.
+ * </p>
+ */
+public class CheckpointWriter implements Runnable {
+
+	private final File file;
+	private final long intervalMillis;
+	private final BlockingQueue<Callable<SearchCheckpoint>> snapshots = new ArrayBlockingQueue<Callable<SearchCheckpoint>>(1);
+	/** the writer thread of the current run */
+	private Thread thread;
+
+	private volatile boolean requested;
+	private volatile boolean finished;
+
+	/**
+	 * @param file              the checkpoint file
+	 * @param intervalMillis    time between two checkpoints
+	 */
+	public CheckpointWriter(File file, long intervalMillis) {
+		this.file = file;
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * Starts a new writer thread, once per run of the search. Each call
+	 * must be followed by {@link #finish(Callable)}.
+	 */
+	public void start() {
+		finished = false;
+		requested = false;
+		snapshots.clear();
+
+		thread = new Thread(this, "ETSPPC Checkpoint");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return true if the search should offer a snapshot at its next node
+	 */
+	public boolean isRequested() {
+		return requested;
+	}
+
+	/**
+	 * Hands a snapshot to the writer, never blocks.
+	 *
+	 * @param snapshot      produces the checkpoint when called on the writer thread
+	 */
+	public void offer(Callable<SearchCheckpoint> snapshot) {
+		requested = false;
+		snapshots.offer(snapshot);
+	}
+
+	/**
+	 * Writes the final snapshot and waits until it is on disk.
+	 *
+	 * @param snapshot      state at the end of the search
+	 */
+	public void finish(Callable<SearchCheckpoint> snapshot) throws InterruptedException {
+		finished = true;
+		snapshots.clear();
+		snapshots.offer(snapshot);
+		thread.interrupt();
+		thread.join();
+	}
+
+	@Override
+	public void run() {
+		while (!finished) {
+			try {
+				Thread.sleep(intervalMillis);
+				requested = true;
+				while (!finished) {
+					Callable<SearchCheckpoint> snapshot = snapshots.poll(intervalMillis, TimeUnit.MILLISECONDS);
+					if (snapshot != null) {
+						write(snapshot);
+						break;
+					}
+				}
+			} catch (InterruptedException e) {
+				// finish() was called, the final snapshot is written below
+			}
+		}
+
+		Callable<SearchCheckpoint> last = snapshots.poll();
+		if (last != null) {
+			write(last);
+		}
+	}
+
+	private void write(Callable<SearchCheckpoint> snapshot) {
+		try {
+			snapshot.call().write(file);
+		} catch (Exception e) {
+			Main.printDebug("checkpoint " + file + " failed: " + e);
+		}
+	}
+}
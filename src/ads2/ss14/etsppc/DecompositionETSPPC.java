@@ -0,0 +1,498 @@
+package ads2.ss14.etsppc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Solver for instances too large for a distance matrix. The cities are cut
+ * into clusters of about {@link #CLUSTER_SIZE} cities along a Hilbert curve,
+ * which also gives the order in which the clusters are visited. A city whose
+ * predecessors are visited later on the curve waits for the next sweep along
+ * the curve, so every constraint between two clusters points forward and the
+ * cluster order is consistent with the precedences.
+ *
+ * <p>
+ * The clusters are solved independently and in parallel by {@link ETSPPC}
+ * and {@link LocalSearchETSPPC}. Each cluster tour is cut open where it
+ * connects best to the previous cluster without breaking a constraint inside
+ * the cluster, the paths are joined in cluster order and the joined tour is
+ * polished by Or-opt moves over a small window, which mostly changes the
+ * tour around the joints.
+ * </p>
+ *
+ * <p>
+ * Apart from the matrices of single clusters, memory stays linear in the
+ * number of cities and constraints.
+ * </p>
+ */
+public class DecompositionETSPPC extends AbstractETSPPC {
+
+	/** below this size a single {@link ETSPPC} is the better choice */
+	public static final int MIN_CITIES = 10000;
+
+	private static final int CLUSTER_SIZE = 200;
+
+	/** time for the branch-and-bound of one cluster */
+	private static final long CLUSTER_MILLIS = 50;
+
+	/** larger clusters are built without a distance matrix */
+	private static final int MATRIX_LIMIT = 2000;
+
+	/** positions a segment may move while the joined tour is polished */
+	private static final int POLISH_WINDOW = 50;
+
+	/** the Hilbert curve runs over a grid of 2^HILBERT_ORDER cells per side */
+	private static final int HILBERT_ORDER = 15;
+
+	private final ETSPPCInstance instance;
+	private final int threads;
+	private final Location[] cities;
+	private final Map<Integer, Integer> index;
+	private final int[][] predecessors;
+	private final int[][] successors;
+
+	/** cluster of each city */
+	private int[] cluster;
+	private volatile boolean stopped;
+	private volatile LocalSearchETSPPC polish;
+
+	public DecompositionETSPPC(ETSPPCInstance instance) {
+		this(instance, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param instance      the instance to solve
+	 * @param threads       number of clusters solved at the same time
+	 */
+	public DecompositionETSPPC(ETSPPCInstance instance, int threads) {
+		this.instance = instance;
+		this.threads = Math.max(1, threads);
+
+		int n = instance.getAllLocations().size();
+		cities = new Location[n];
+		index = new HashMap<Integer, Integer>(n * 2);
+		int i = 0;
+		for (Location l : instance.getAllLocations().values()) {
+			cities[i] = l;
+			index.put(l.getCityId(), i++);
+		}
+
+		List<List<Integer>> preds = new ArrayList<List<Integer>>(n);
+		List<List<Integer>> succs = new ArrayList<List<Integer>>(n);
+		for (i = 0; i < n; i++) {
+			preds.add(new ArrayList<Integer>(1));
+			succs.add(new ArrayList<Integer>(1));
+		}
+		for (PrecedenceConstraint pc : instance.getConstraints()) {
+			int first = index.get(pc.getFirst());
+			int second = index.get(pc.getSecond());
+			preds.get(second).add(first);
+			succs.get(first).add(second);
+		}
+		predecessors = LocalSearchETSPPC.toArrays(preds);
+		successors = LocalSearchETSPPC.toArrays(succs);
+	}
+
+	@Override
+	public void run() {
+		Object phase = SolverEvents.beginPhase();
+		int[] order = topologicalOrder();
+		int clusters = partition(order);
+
+		// members of each cluster, in topological order
+		int[] start = new int[clusters + 1];
+		for (int c : cluster) {
+			start[c + 1]++;
+		}
+		for (int c = 0; c < clusters; c++) {
+			start[c + 1] += start[c];
+		}
+		int[] members = new int[cities.length];
+		int[] fill = Arrays.copyOf(start, clusters);
+		for (int city : order) {
+			members[fill[cluster[city]]++] = city;
+		}
+
+		int[][] tours = solveClusters(members, start);
+		int[] tour = stitch(tours);
+		SolverEvents.endPhase(phase, this, SolverEvents.DECOMPOSITION, cities.length);
+
+		List<Location> solution = toTour(tour);
+		setSolution(SolutionVerifier.objectiveValue(solution), solution);
+		if (stopped) return;
+
+		phase = SolverEvents.beginPhase();
+		LocalSearchETSPPC local = new LocalSearchETSPPC(instance, solution);
+		local.setWindow(POLISH_WINDOW);
+		local.setSolutionListener(new SolutionListener() {
+			@Override
+			public void improved(double cost, List<Location> tour) {
+				setSolution(cost, tour);
+			}
+		});
+		polish = local;
+		if (!stopped) local.run();
+		SolverEvents.endPhase(phase, this, SolverEvents.LOCAL_SEARCH, cities.length);
+	}
+
+	/**
+	 * Ends the run as soon as possible. Clusters that were not solved yet are
+	 * visited in topological order, so the run still ends with a tour. May be
+	 * called from any thread.
+	 */
+	public void stop() {
+		stopped = true;
+		LocalSearchETSPPC local = polish;
+		if (local != null) local.stop();
+	}
+
+	/**
+	 * @return      all cities, every city after its predecessors
+	 */
+	private int[] topologicalOrder() {
+		int n = cities.length;
+		int[] pending = new int[n];
+		int[] order = new int[n];
+		int size = 0;
+		for (int i = 0; i < n; i++) {
+			pending[i] = predecessors[i].length;
+			if (pending[i] == 0) order[size++] = i;
+		}
+		for (int head = 0; head < size; head++) {
+			for (int s : successors[order[head]]) {
+				if (--pending[s] == 0) order[size++] = s;
+			}
+		}
+		if (size < n) {
+			throw new IllegalArgumentException("precedence constraints contain a cycle");
+		}
+		return order;
+	}
+
+	/**
+	 * Assigns every city to a cluster such that no city is in an earlier
+	 * cluster than one of its predecessors. The curve is cut into cells of
+	 * {@link #CLUSTER_SIZE} cities and swept several times: a city is
+	 * visited in its cell during the first sweep that reaches the cell after
+	 * all its predecessors were visited. The clusters are the non-empty
+	 * cells of all sweeps.
+	 *
+	 * @param order     the cities in topological order
+	 * @return          the number of clusters
+	 */
+	private int partition(int[] order) {
+		int n = cities.length;
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (Location l : cities) {
+			minX = Math.min(minX, l.getX());
+			minY = Math.min(minY, l.getY());
+			maxX = Math.max(maxX, l.getX());
+			maxY = Math.max(maxY, l.getY());
+		}
+		int side = 1 << HILBERT_ORDER;
+		double scale = (side - 1) / Math.max(Math.max(maxX - minX, maxY - minY), 1e-9);
+
+		// curve position in the high bits, city in the low bits
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			int x = (int) ((cities[i].getX() - minX) * scale);
+			int y = (int) ((cities[i].getY() - minY) * scale);
+			keys[i] = hilbert(x, y, side) << 32 | i;
+		}
+		Arrays.sort(keys);
+
+		int cells = (n + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+		int[] cell = new int[n];
+		for (int rank = 0; rank < n; rank++) {
+			cell[(int) keys[rank]] = rank / CLUSTER_SIZE;
+		}
+
+		// sweep * cells + cell, reusing the keys
+		long[] slot = keys;
+		for (int city : order) {
+			long required = 0;
+			for (int p : predecessors[city]) {
+				required = Math.max(required, slot[p]);
+			}
+			long s = required / cells * cells + cell[city];
+			slot[city] = s < required ? s + cells : s;
+		}
+
+		long[] used = slot.clone();
+		Arrays.sort(used);
+		int clusters = 0;
+		for (int i = 0; i < n; i++) {
+			if (i == 0 || used[i] != used[i - 1]) used[clusters++] = used[i];
+		}
+		cluster = new int[n];
+		for (int i = 0; i < n; i++) {
+			cluster[i] = Arrays.binarySearch(used, 0, clusters, slot[i]);
+		}
+		return clusters;
+	}
+
+	/**
+	 * Position of the cell (x, y) on the Hilbert curve through a grid of
+	 * <code>side</code> x <code>side</code> cells.
+	 */
+	private static long hilbert(int x, int y, int side) {
+		long d = 0;
+		for (int s = side / 2; s > 0; s /= 2) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			if (ry == 0) {
+				if (rx == 1) {
+					x = side - 1 - x;
+					y = side - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * @return      a closed tour of each cluster as city indices
+	 */
+	private int[][] solveClusters(final int[] members, final int[] start) {
+		int clusters = start.length - 1;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		try {
+			List<Future<int[]>> futures = new ArrayList<Future<int[]>>(clusters);
+			for (int c = 0; c < clusters; c++) {
+				final int[] part = Arrays.copyOfRange(members, start[c], start[c + 1]);
+				futures.add(pool.submit(new Callable<int[]>() {
+					@Override
+					public int[] call() {
+						return stopped ? part : solveCluster(part, timer);
+					}
+				}));
+			}
+
+			int[][] tours = new int[clusters][];
+			for (int c = 0; c < clusters; c++) {
+				tours[c] = futures.get(c).get();
+			}
+			return tours;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while solving the clusters");
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("solving a cluster failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+			timer.shutdownNow();
+		}
+	}
+
+	/**
+	 * @param part      the cities of the cluster in topological order
+	 * @return          a closed tour of the cluster
+	 */
+	private int[] solveCluster(int[] part, ScheduledExecutorService timer) {
+		if (part.length <= 3) return part;
+
+		HashMap<Integer, Location> locations = new HashMap<Integer, Location>(part.length * 2);
+		ArrayList<PrecedenceConstraint> constraints = new ArrayList<PrecedenceConstraint>();
+		for (int city : part) {
+			locations.put(cities[city].getCityId(), cities[city]);
+			for (int s : successors[city]) {
+				if (cluster[s] == cluster[city]) {
+					constraints.add(new PrecedenceConstraint(cities[city].getCityId(), cities[s].getCityId()));
+				}
+			}
+		}
+		ETSPPCInstance sub = new ETSPPCInstance(locations, constraints, Double.POSITIVE_INFINITY);
+
+		List<Location> tour = null;
+		if (part.length <= MATRIX_LIMIT) {
+			final ETSPPC solver = new ETSPPC(sub);
+			// polished below, also when the search is cut short
+			solver.setPolish(false);
+			ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					solver.stop();
+				}
+			}, CLUSTER_MILLIS, TimeUnit.MILLISECONDS);
+			solver.run();
+			timeout.cancel(false);
+			tour = solver.getBestSolution().getBestSolution();
+		}
+		int[] result = tour != null && tour.size() == part.length ? toIndices(tour) : nearestNeighbour(part);
+
+		LocalSearchETSPPC local = new LocalSearchETSPPC(sub, toTour(result));
+		if (part.length > MATRIX_LIMIT) local.setWindow(POLISH_WINDOW);
+		local.run();
+		return toIndices(local.getBestSolution().getBestSolution());
+	}
+
+	/**
+	 * Precedence-feasible nearest neighbour path through a cluster, in
+	 * O(m^2) time without a distance matrix.
+	 */
+	private int[] nearestNeighbour(int[] part) {
+		int m = part.length;
+		Map<Integer, Integer> local = new HashMap<Integer, Integer>(m * 2);
+		for (int i = 0; i < m; i++) {
+			local.put(part[i], i);
+		}
+		int[] pending = new int[m];
+		for (int i = 0; i < m; i++) {
+			for (int p : predecessors[part[i]]) {
+				if (local.containsKey(p)) pending[i]++;
+			}
+		}
+
+		boolean[] used = new boolean[m];
+		int[] path = new int[m];
+		int current = -1;
+		for (int k = 0; k < m; k++) {
+			int best = -1;
+			double bestDistance = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < m; i++) {
+				if (used[i] || pending[i] > 0) continue;
+				double d = current < 0 ? 0.0 : cities[part[current]].distanceTo(cities[part[i]]);
+				if (d < bestDistance) {
+					bestDistance = d;
+					best = i;
+				}
+			}
+			used[best] = true;
+			path[k] = part[best];
+			for (int s : successors[part[best]]) {
+				Integer i = local.get(s);
+				if (i != null) pending[i]--;
+			}
+			current = best;
+		}
+		return path;
+	}
+
+	/**
+	 * Joins the cluster tours in cluster order. Each tour is opened between
+	 * two cities such that no constraint inside the cluster is broken,
+	 * choosing the cut that connects best to the previous cluster and leaves
+	 * off closest to the centre of the next one.
+	 */
+	private int[] stitch(int[][] tours) {
+		int[] tour = new int[cities.length];
+		int[] position = new int[cities.length];
+		int size = 0;
+		int exit = -1;
+
+		for (int c = 0; c < tours.length; c++) {
+			int[] t = tours[c];
+			int m = t.length;
+			if (m == 0) continue;
+			for (int i = 0; i < m; i++) {
+				position[t[i]] = i;
+			}
+
+			// a cut before position k breaks every constraint from before k to k or later
+			int[] broken = new int[m + 1];
+			for (int i = 0; i < m; i++) {
+				for (int s : successors[t[i]]) {
+					if (cluster[s] != c) continue;
+					broken[i + 1]++;
+					broken[position[s] + 1]--;
+				}
+			}
+
+			double nextX = 0.0, nextY = 0.0;
+			boolean hasNext = c + 1 < tours.length && tours[c + 1].length > 0;
+			if (hasNext) {
+				for (int city : tours[c + 1]) {
+					nextX += cities[city].getX();
+					nextY += cities[city].getY();
+				}
+				nextX /= tours[c + 1].length;
+				nextY /= tours[c + 1].length;
+			}
+
+			int bestCut = 0;
+			double bestCost = Double.POSITIVE_INFINITY;
+			int open = 0;
+			for (int k = 0; k < m; k++) {
+				open += broken[k];
+				if (open > 0) continue;
+				Location entry = cities[t[k]];
+				Location last = cities[t[(k + m - 1) % m]];
+				double cost = m > 1 ? -last.distanceTo(entry) : 0.0;
+				if (exit >= 0) cost += cities[exit].distanceTo(entry);
+				if (hasNext) cost += Math.hypot(last.getX() - nextX, last.getY() - nextY);
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestCut = k;
+				}
+			}
+
+			for (int i = 0; i < m; i++) {
+				tour[size++] = t[(bestCut + i) % m];
+			}
+			exit = tour[size - 1];
+		}
+		return tour;
+	}
+
+	private int[] toIndices(List<Location> tour) {
+		int[] result = new int[tour.size()];
+		int i = 0;
+		for (Location l : tour) {
+			result[i++] = index.get(l.getCityId());
+		}
+		return result;
+	}
+
+	private List<Location> toTour(int[] indices) {
+		List<Location> tour = new ArrayList<Location>(indices.length);
+		for (int i : indices) {
+			tour.add(cities[i]);
+		}
+		return tour;
+	}
+
+	/**
+	 * Usage: <code>DecompositionETSPPC instance [seconds] [threads]</code>
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("usage: DecompositionETSPPC <instance> [seconds] [threads]");
+			System.exit(1);
+		}
+
+		ETSPPCInstance instance = new TspLibReader(args[0]).readInstance();
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 60;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		DecompositionETSPPC solver = new DecompositionETSPPC(new ETSPPCInstance(instance), threads);
+		Thread thread = new Thread(solver, "ETSPPC Decomposition");
+		long begin = System.currentTimeMillis();
+		thread.start();
+		thread.join(seconds * 1000);
+		solver.stop();
+		thread.join();
+
+		AbstractETSPPC.BnBSolution sol = solver.getBestSolution();
+		SolutionVerifier.Result check = new SolutionVerifier(instance).verify(sol.getBestSolution(), sol.getUpperBound());
+		System.out.println(sol.getUpperBound() + " in " + (System.currentTimeMillis() - begin) + " ms"
+				+ (check.isValid() ? "" : " INVALID " + check.getViolations()));
+	}
+}
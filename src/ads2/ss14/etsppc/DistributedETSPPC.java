@@ -0,0 +1,394 @@
+package ads2.ss14.etsppc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coordinator of a distributed branch-and-bound run.
+ *
+ * <p>
+ * The search tree is split into subproblems with {@link ETSPPC#split(int)},
+ * which are handed to {@link DistributedWorker} processes over loopback
+ * sockets one at a time. Every improvement reported by a worker becomes the
+ * incumbent of this solver and its cost is broadcast to all workers as the
+ * new pruning bound. Subproblems of a worker whose connection breaks are
+ * queued again; if no worker is left, the coordinator finishes them itself.
+ * The subproblems are not polished by local search, the final tour is
+ * polished once by the coordinator.
+ * </p>
+ */
+public class DistributedETSPPC extends AbstractETSPPC {
+
+	static final byte MSG_INSTANCE = 1;
+	static final byte MSG_TASK = 2;
+	static final byte MSG_BOUND = 3;
+	static final byte MSG_SHUTDOWN = 4;
+	static final byte MSG_SOLUTION = 5;
+	static final byte MSG_DONE = 6;
+
+	/** Subproblems per worker, more of them balance the load better */
+	private static final int TASKS_PER_WORKER = 8;
+
+	private static final long POLL_MILLIS = 100;
+
+	/** How long the coordinator waits without any connected worker */
+	private static final long CONNECT_MILLIS = 10000;
+
+	private final ETSPPCInstance instance;
+	private final int numWorkers;
+	private final ETSPPC local;
+
+	private final LinkedBlockingDeque<Task> tasks = new LinkedBlockingDeque<Task>();
+	private final AtomicInteger unfinished = new AtomicInteger();
+	/** subproblems finished by workers rather than by the coordinator */
+	private final AtomicInteger workerTasks = new AtomicInteger();
+	private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+	/** guards losing a connection against the decision to stop accepting */
+	private final Object connectionLock = new Object();
+	private final List<Process> processes = new ArrayList<Process>();
+
+	private static final class Task {
+		final int id;
+		final SearchCheckpoint.Frame frame;
+
+		Task(int id, SearchCheckpoint.Frame frame) {
+			this.id = id;
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * A connected worker, serves it tasks until all work is done.
+	 */
+	private final class Connection implements Runnable {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		synchronized void sendBound(double bound) {
+			try {
+				out.writeByte(MSG_BOUND);
+				out.writeDouble(bound);
+				out.flush();
+			} catch (IOException e) {
+				// the serving thread notices the broken connection
+			}
+		}
+
+		synchronized void sendShutdown() {
+			try {
+				out.writeByte(MSG_SHUTDOWN);
+				out.flush();
+			} catch (IOException e) {
+				// worker already gone
+			}
+		}
+
+		@Override
+		public void run() {
+			Task task = null;
+			try {
+				synchronized (this) {
+					out.writeByte(MSG_INSTANCE);
+					writeInstance(out, instance);
+					out.writeByte(MSG_BOUND);
+					out.writeDouble(getBestSolution().getUpperBound());
+					out.flush();
+				}
+
+				while (unfinished.get() > 0) {
+					task = tasks.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (task == null) continue;
+
+					synchronized (this) {
+						out.writeByte(MSG_TASK);
+						out.writeInt(task.id);
+						writeFrame(out, task.frame);
+						out.flush();
+					}
+
+					while (true) {
+						byte msg = in.readByte();
+						if (msg == MSG_SOLUTION) {
+							offer(readInts(in));
+						} else if (msg == MSG_DONE && in.readInt() == task.id) {
+							break;
+						}
+					}
+					task = null;
+					workerTasks.incrementAndGet();
+					unfinished.decrementAndGet();
+				}
+			} catch (IOException e) {
+				Main.printDebug("worker " + socket.getRemoteSocketAddress() + " lost: " + e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				// once the coordinator sees no connection, the task must be queued
+				synchronized (connectionLock) {
+					if (task != null) tasks.addFirst(task);
+					connections.remove(this);
+				}
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param instance      the instance to solve
+	 * @param numWorkers    number of worker processes to start
+	 */
+	public DistributedETSPPC(ETSPPCInstance instance, int numWorkers) {
+		this.instance = instance;
+		this.numWorkers = numWorkers;
+
+		local = new ETSPPC(instance);
+		// the subproblems are explored one at a time, their tours are not final
+		local.setPolish(false);
+		AbstractETSPPC.BnBSolution initial = local.getBestSolution();
+		setSolution(initial.getUpperBound(), initial.getBestSolution());
+	}
+
+	@Override
+	public void run() {
+		List<SearchCheckpoint.Frame> frames = local.split(numWorkers * TASKS_PER_WORKER);
+		AbstractETSPPC.BnBSolution best = local.getBestSolution();
+		setSolution(best.getUpperBound(), best.getBestSolution());
+
+		for (int i = 0; i < frames.size(); i++) {
+			tasks.add(new Task(i, frames.get(i)));
+		}
+		unfinished.set(frames.size());
+
+		ServerSocket server = null;
+		try {
+			server = new ServerSocket(0, numWorkers, InetAddress.getLoopbackAddress());
+			startWorkers(server.getLocalPort());
+			acceptWorkers(server);
+		} catch (IOException e) {
+			Main.printDebug("distribution failed, continuing locally: " + e);
+		} finally {
+			if (server != null) {
+				try {
+					server.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+
+		// whatever the workers did not finish is explored here
+		local.updateBound(getBestSolution().getUpperBound());
+		for (Task task = tasks.poll(); task != null; task = tasks.poll()) {
+			local.explore(task.frame);
+			unfinished.decrementAndGet();
+		}
+		best = local.getBestSolution();
+		setSolution(best.getUpperBound(), best.getBestSolution());
+
+		for (Connection c : connections) {
+			c.sendShutdown();
+		}
+		for (Process p : processes) {
+			p.destroy();
+		}
+
+		best = getBestSolution();
+		if (best.getUpperBound() < Double.POSITIVE_INFINITY) {
+			LocalSearchETSPPC polisher = new LocalSearchETSPPC(instance, best.getBestSolution());
+			polisher.run();
+			best = polisher.getBestSolution();
+			setSolution(best.getUpperBound(), best.getBestSolution());
+		}
+	}
+
+	/**
+	 * @return      the number of subproblems finished by workers
+	 */
+	int getWorkerTasks() {
+		return workerTasks.get();
+	}
+
+	private void startWorkers(int port) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classpath = System.getProperty("java.class.path");
+
+		for (int i = 0; i < numWorkers; i++) {
+			ProcessBuilder pb = new ProcessBuilder(java, "-cp", classpath, DistributedWorker.class.getName(), String.valueOf(port));
+			pb.inheritIO();
+			processes.add(pb.start());
+		}
+	}
+
+	/**
+	 * Accepts workers until all tasks are done, or until no worker is
+	 * connected and every started process has exited or none connected for
+	 * CONNECT_MILLIS.
+	 */
+	private void acceptWorkers(ServerSocket server) throws IOException {
+		server.setSoTimeout((int) POLL_MILLIS);
+		long idleSince = System.currentTimeMillis();
+
+		while (unfinished.get() > 0) {
+			try {
+				Connection c = new Connection(server.accept());
+				connections.add(c);
+				Thread t = new Thread(c, "ETSPPC Coordinator " + connections.size());
+				t.setDaemon(true);
+				t.start();
+			} catch (SocketTimeoutException e) {
+				// check progress and liveness below
+			}
+
+			synchronized (connectionLock) {
+				if (!connections.isEmpty()) {
+					idleSince = System.currentTimeMillis();
+				} else if (!anyProcessAlive()) {
+					Main.printDebug("no workers left, continuing locally");
+					return;
+				} else if (System.currentTimeMillis() - idleSince > CONNECT_MILLIS) {
+					Main.printDebug("no worker connected for " + CONNECT_MILLIS + " ms, continuing locally");
+					return;
+				}
+			}
+		}
+	}
+
+	private boolean anyProcessAlive() {
+		for (Process p : processes) {
+			try {
+				p.exitValue();
+			} catch (IllegalThreadStateException e) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Validates a tour reported by a worker, installs it if it is better and
+	 * broadcasts its cost.
+	 */
+	private void offer(int[] ids) {
+		List<Location> tour = new ArrayList<Location>(ids.length);
+		for (int id : ids) {
+			tour.add(instance.getAllLocations().get(id));
+		}
+		double cost = SolutionVerifier.objectiveValue(tour);
+		if (!new SolutionVerifier(instance).verify(tour, cost).isValid()) {
+			Main.printDebug("invalid tour from worker ignored");
+			return;
+		}
+
+		if (setSolution(cost, tour)) {
+			for (Connection c : connections) {
+				c.sendBound(cost);
+			}
+		}
+	}
+
+	static void writeInstance(DataOutputStream out, ETSPPCInstance instance) throws IOException {
+		out.writeDouble(instance.getThreshold());
+		out.writeInt(instance.getAllLocations().size());
+		for (Location l : instance.getAllLocations().values()) {
+			out.writeInt(l.getCityId());
+			out.writeDouble(l.getX());
+			out.writeDouble(l.getY());
+		}
+		out.writeInt(instance.getConstraints().size());
+		for (PrecedenceConstraint pc : instance.getConstraints()) {
+			out.writeInt(pc.getFirst());
+			out.writeInt(pc.getSecond());
+		}
+	}
+
+	static ETSPPCInstance readInstance(DataInputStream in) throws IOException {
+		double threshold = in.readDouble();
+		int n = in.readInt();
+		Map<Integer, Location> locations = new HashMap<Integer, Location>(n);
+		for (int i = 0; i < n; i++) {
+			int id = in.readInt();
+			locations.put(id, new Location(id, in.readDouble(), in.readDouble()));
+		}
+		int m = in.readInt();
+		List<PrecedenceConstraint> constraints = new ArrayList<PrecedenceConstraint>(m);
+		for (int i = 0; i < m; i++) {
+			constraints.add(new PrecedenceConstraint(in.readInt(), in.readInt()));
+		}
+		return new ETSPPCInstance(locations, constraints, threshold);
+	}
+
+	static void writeFrame(DataOutputStream out, SearchCheckpoint.Frame frame) throws IOException {
+		out.writeInt(frame.getNode());
+		out.writeInt(frame.getVisited());
+		writeInts(out, frame.getTour());
+		writeInts(out, frame.getSkipped());
+	}
+
+	static SearchCheckpoint.Frame readFrame(DataInputStream in) throws IOException {
+		int node = in.readInt();
+		int visited = in.readInt();
+		return new SearchCheckpoint.Frame(readInts(in), readInts(in), node, visited);
+	}
+
+	static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		out.writeInt(values.length);
+		for (int v : values) {
+			out.writeInt(v);
+		}
+	}
+
+	static int[] readInts(DataInputStream in) throws IOException {
+		int[] values = new int[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	/**
+	 * Usage: <code>DistributedETSPPC instance [workers]</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: DistributedETSPPC <instance> [workers]");
+			System.exit(1);
+		}
+
+		ETSPPCInstance instance = new TspLibReader(args[0]).readInstance();
+		int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		DistributedETSPPC solver = new DistributedETSPPC(new ETSPPCInstance(instance), workers);
+		solver.run();
+
+		AbstractETSPPC.BnBSolution sol = solver.getBestSolution();
+		SolutionVerifier.Result check = new SolutionVerifier(instance).verify(sol.getBestSolution(), sol.getUpperBound());
+		System.out.println(sol.getUpperBound() + (check.isValid() ? "" : " INVALID " + check.getViolations()));
+	}
+}
@@ -0,0 +1,64 @@
+package ads2.ss14.etsppc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Runs {@link DistributedETSPPC} with two {@link DistributedWorker}
+ * processes on the loopback interface and checks every final tour with
+ * {@link SolutionVerifier}. A run also fails if no subproblem was finished
+ * by a worker, since the coordinator would then have solved the instance on
+ * its own. Prints one line per instance and exits with status 1 if any run
+ * failed.
+ *
+ * <p>
+ * Usage: <code>DistributedHarness [instance ...]</code>, by default all files
+ * in <code>public_instances</code>
+ * </p>
+ */
+public class DistributedHarness {
+
+	private static final int WORKERS = 2;
+
+	public static void main(String[] args) throws IOException {
+		File[] files;
+		if (args.length > 0) {
+			files = new File[args.length];
+			for (int i = 0; i < args.length; i++) {
+				files[i] = new File(args[i]);
+			}
+		} else {
+			files = new File("public_instances").listFiles();
+			if (files == null) {
+				System.err.println("usage: DistributedHarness [instance ...]");
+				System.exit(1);
+			}
+			Arrays.sort(files);
+		}
+
+		boolean failed = false;
+		for (File file : files) {
+			ETSPPCInstance instance = new TspLibReader(file.getPath()).readInstance();
+			DistributedETSPPC solver = new DistributedETSPPC(new ETSPPCInstance(instance), WORKERS);
+			long start = System.currentTimeMillis();
+			solver.run();
+			long millis = System.currentTimeMillis() - start;
+
+			AbstractETSPPC.BnBSolution sol = solver.getBestSolution();
+			SolutionVerifier.Result check = new SolutionVerifier(instance).verify(sol.getBestSolution(), sol.getUpperBound());
+			String status;
+			if (!check.isValid()) {
+				status = "INVALID " + check.getViolations();
+			} else if (solver.getWorkerTasks() == 0) {
+				status = "NO WORKER";
+			} else {
+				status = "OK";
+			}
+			failed |= !status.equals("OK");
+			System.out.println(file.getName() + " " + status + " " + sol.getUpperBound() + " tasks by workers: "
+					+ solver.getWorkerTasks() + ", " + millis + " ms");
+		}
+		System.exit(failed ? 1 : 0);
+	}
+}
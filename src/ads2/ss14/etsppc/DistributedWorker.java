@@ -0,0 +1,113 @@
+package ads2.ss14.etsppc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Worker process of a {@link DistributedETSPPC} run. Explores the
+ * subproblems it receives with its own {@link ETSPPC} and reports every
+ * improvement back to the coordinator.
+ *
+ * <p>
+ * Bounds broadcast by the coordinator are read on a separate thread, so
+ * they take effect while a subproblem is being explored.
+ * </p>
+ */
+public class DistributedWorker {
+
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final ETSPPC solver;
+
+	private DistributedWorker(Socket socket) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+		if (in.readByte() != DistributedETSPPC.MSG_INSTANCE) {
+			throw new IOException("protocol error: expected instance");
+		}
+		solver = new ETSPPC(DistributedETSPPC.readInstance(in));
+		solver.setPolish(false);
+		solver.setSolutionListener(new SolutionListener() {
+			@Override
+			public void improved(double cost, List<Location> tour) {
+				send(tour);
+			}
+		});
+	}
+
+	private synchronized void send(List<Location> tour) {
+		try {
+			out.writeByte(DistributedETSPPC.MSG_SOLUTION);
+			int[] ids = new int[tour.size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = tour.get(i).getCityId();
+			}
+			DistributedETSPPC.writeInts(out, ids);
+			out.flush();
+		} catch (IOException e) {
+			System.exit(1); // coordinator is gone
+		}
+	}
+
+	private synchronized void sendDone(int task) throws IOException {
+		out.writeByte(DistributedETSPPC.MSG_DONE);
+		out.writeInt(task);
+		out.flush();
+	}
+
+	/**
+	 * Reads messages until the coordinator shuts the worker down. Tasks are
+	 * explored on this thread, bounds are applied immediately.
+	 */
+	private void serve() throws IOException, InterruptedException {
+		final BlockingQueue<Object[]> tasks = new LinkedBlockingQueue<Object[]>();
+
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						byte msg = in.readByte();
+						if (msg == DistributedETSPPC.MSG_BOUND) {
+							solver.updateBound(in.readDouble());
+						} else if (msg == DistributedETSPPC.MSG_TASK) {
+							int id = in.readInt();
+							tasks.put(new Object[] { id, DistributedETSPPC.readFrame(in) });
+						} else {
+							break;
+						}
+					}
+				} catch (Exception e) {
+					// connection closed
+				}
+				System.exit(0);
+			}
+		}, "ETSPPC Worker Reader");
+		reader.setDaemon(true);
+		reader.start();
+
+		while (true) {
+			Object[] task = tasks.take();
+			solver.explore((SearchCheckpoint.Frame) task[1]);
+			sendDone((Integer) task[0]);
+		}
+	}
+
+	/**
+	 * Usage: <code>DistributedWorker port</code>, connects to a coordinator on
+	 * the loopback interface.
+	 */
+	public static void main(String[] args) throws Exception {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]));
+		new DistributedWorker(socket).serve();
+	}
+}
@@ -1,235 +1,1727 @@
 package ads2.ss14.etsppc;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 public class ETSPPC extends AbstractETSPPC {
 
+    private static final long PROGRESS_NANOS = 1000000000L;
+
+    /** largest distance in units, Integer.MAX_VALUE marks the diagonal */
+    private static final int MAX_UNITS = Integer.MAX_VALUE - 1;
+
+    /**
+     * How the search compares distances. In the unit modes the distances are
+     * kept in an int matrix and tour costs are summed as longs, which makes
+     * the scans denser in memory and the comparisons exact. The costs that are
+     * reported are always recomputed from the coordinates, exactly like the
+     * checker does.
+     */
+    public enum DistanceMode {
+        /** doubles, as computed by {@link Location#distanceTo(Location)} */
+        EXACT,
+        /** distances scaled by a power of two and rounded, as fine as the int range allows */
+        FIXED_POINT,
+        /** distances rounded to the nearest integer, like TSPLIB's EUC_2D */
+        ROUNDED
+    }
+
+    /**
+     * The order in which the search tries the cities for the next position of
+     * the tour. The city chosen after a node is the first one tried behind it
+     * in the left branch and the one tried instead of it in the right branch.
+     */
+    public enum Branching {
+        /** the nearest remaining city */
+        NEAREST_FIRST,
+        /** the remaining city with the most direct and indirect successors, the nearer one on ties */
+        MOST_CONSTRAINED,
+        /** among the nearest remaining cities the one whose next best neighbor is farthest away */
+        REGRET,
+        /** among the nearest remaining cities the one with the cheapest NN completion */
+        BOUND_GUIDED
+    }
+
+    /** candidates considered by {@link Branching#REGRET} */
+    private static final int REGRET_CANDIDATES = 8;
+    /** candidates considered by {@link Branching#BOUND_GUIDED}, each costs an NN completion */
+    private static final int BOUND_CANDIDATES = 4;
+
+    private final ETSPPCInstance instance;
     private final ArrayList<Location> locationArray;
     private final ArrayList<PrecedenceConstraint> constraintList;
     private final HashMap<Integer, Location> locationMap;
+    /** position of each city id in locationArray and the distance matrix */
+    private final HashMap<Integer, Integer> indexMap;
     private final double threshold;
     private double lowerBound;
 
-    private Double[][] distanceMatrix;
+    /*
+     * The distance matrices are square and may have room for more cities than
+     * the instance has, only the first locationArray.size() rows and columns
+     * are used.
+     */
+
+    /** distances by index, POSITIVE_INFINITY on the diagonal, null in the unit modes */
+    private double[][] distanceMatrix;
+    /** distances in units by index, Integer.MAX_VALUE on the diagonal, null in EXACT mode */
+    private int[][] unitMatrix;
+    /** whether another solver may read the matrix, then it is copied before an edit */
+    private boolean matrixShared;
+    /** units per distance */
+    private double scale = 1.0;
+    /** the bounds used for pruning in units, see {@link #toBoundUnits(double)} */
+    private long incumbentUnits = Long.MAX_VALUE;
+    private long thresholdUnits = Long.MAX_VALUE;
+    private volatile long sharedUnits = Long.MAX_VALUE;
     private LinkedList<Location> bestTour;
 
+    private long nodes;
+    private long improvements;
+
+    /** subproblems that still have to be explored, the next one on top */
+    private final ArrayDeque<SearchCheckpoint.Frame> pending = new ArrayDeque<SearchCheckpoint.Frame>();
+    private CheckpointWriter checkpointWriter;
+    private SearchTrace trace;
+    private Branching order = Branching.NEAREST_FIRST;
+    private BranchingRule branching = new NearestFirst();
+    private SolutionListener solutionListener;
+    private SolutionCache solutionCache;
+
+    /** best cost known outside of this solver, only used for pruning */
+    private volatile double sharedBound = Double.POSITIVE_INFINITY;
+    private volatile boolean stopped;
+    /** whether the final tour is improved by {@link LocalSearchETSPPC} */
+    private boolean polish = true;
+    private volatile LocalSearchETSPPC polisher;
+
+    /*
+     * State of the search engine, allocated once per instance size. Moves
+     * through the tree are applied to and undone on these arrays, nothing is
+     * copied per node. All cities are given by their index.
+     */
+
+    /** the fixed tour prefix */
+    private int[] prefix;
+    private int prefixLength;
+    private boolean[] inPrefix;
+    /** cities excluded by the right branches of the current frame */
+    private boolean[] skipped;
+    /** excluded cities in the order of exclusion, each frame owns a suffix */
+    private int[] skipLog;
+    private int skipLength;
+
+    /*
+     * Explicit stack, one frame per nested left branch. A right branch is a
+     * tail call and replaces the frame's node in place.
+     */
+    private int depth;
+    private int[] frameNode;
+    private int[] frameVisited;
+    private int[] frameNearest;
+    private int[] frameRightVisited;
+    /** skipLength when the frame was entered */
+    private int[] frameSkipMark;
+    /** node ids for the trace, -1 for the parent of a loaded frame */
+    private long[] frameNodeId;
+    private long[] frameParentId;
+    /** cost of the path through the first k cities of the prefix */
+    private double[] prefixCost;
+
+    /* result of the last branchLeft, for the trace */
+    private double lastBound;
+    private byte lastOutcome;
+
+    /** direct predecessors of each city */
+    private int[][] predecessorIndex;
+    /** positions in constraintList of the constraints whose first city is the given one */
+    private int[][] constraintsFrom;
+    /** positions in constraintList of the constraints that mention the given city */
+    private int[][] constraintsOf;
+    /** the cities of each constraint by position in constraintList, may have room for more */
+    private int[] constraintFirst;
+    private int[] constraintSecond;
+
+    /* scratch space of calculateNNTour */
+    private int[] completion;
+    private int completionLength;
+    private int[] position;
+    private boolean[] inCompletion;
+    private boolean[] rowRemoved;
+    private BitSet violated;
+
+    /* progress samples, see SolverEvents#progress */
+    private long progressMask;
+    private long sampleTime;
+    private long sampleNodes;
+    /** sum of the distances to the nearest neighbors, NaN until needed */
+    private double nearestBound = Double.NaN;
+
+    /* scratch space of the branching rules */
+    private int[] candidates;
+    private double[] candidateDistance;
+    /** number of cities reachable from each city in the precedence graph, null until needed */
+    private int[] successorCount;
+
     public ETSPPC(ETSPPCInstance instance) {
+        this(instance, null, DistanceMode.EXACT);
+    }
+
+    /**
+     * @param instance      the instance to solve
+     * @param mode          how the search compares distances
+     */
+    public ETSPPC(ETSPPCInstance instance, DistanceMode mode) {
+        this(instance, null, mode);
+    }
+
+    /**
+     * @param instance      the instance to solve
+     * @param matrix        distance matrix of an instance with the same
+     *                      {@link ETSPPCInstance#contentHash()}, or null to
+     *                      compute it. It is shared, not copied.
+     */
+    ETSPPC(ETSPPCInstance instance, double[][] matrix) {
+        this(instance, matrix, DistanceMode.EXACT);
+    }
+
+    private ETSPPC(ETSPPCInstance instance, double[][] matrix, DistanceMode mode) {
+
+        this.instance = instance;
 
         constraintList = (ArrayList<PrecedenceConstraint>) instance.getConstraints();
         locationMap = (HashMap<Integer, Location>) instance.getAllLocations();
         locationArray = new ArrayList<Location>(instance.getAllLocations().values());
         threshold = instance.getThreshold();
 
-        distanceMatrix = new Double[locationArray.size()][locationArray.size()];
-        calculateNNmatrix();
+        indexMap = new HashMap<Integer, Integer>();
+        for (int i = 0; i < locationArray.size(); i++) {
+            indexMap.put(locationArray.get(i).getCityId(), i);
+        }
+
+        if (matrix != null) {
+            distanceMatrix = matrix;
+            matrixShared = true;
+        } else {
+            Object phase = SolverEvents.beginPhase();
+            if (mode == DistanceMode.EXACT) {
+                distanceMatrix = new double[locationArray.size()][locationArray.size()];
+            } else {
+                scale = mode == DistanceMode.ROUNDED ? 1.0 : fixedPointScale();
+                unitMatrix = new int[locationArray.size()][locationArray.size()];
+                thresholdUnits = toBoundUnits(threshold);
+            }
+            calculateNNmatrix();
+            SolverEvents.endPhase(phase, this, SolverEvents.MATRIX, locationArray.size());
+        }
+
+        allocateEngine();
+        indexConstraints();
 
-        bestTour = calculateNNTour(copyMatrix(distanceMatrix), new LinkedList<Location>(), 0);
-        lowerBound = cost(bestTour);
+        Object phase = SolverEvents.beginPhase();
+        boolean complete = calculateNNTour(-1, 0);
+        bestTour = completedTour();
+        lowerBound = complete ? cost(bestTour) : Double.POSITIVE_INFINITY;
+        if (unitMatrix != null && complete) incumbentUnits = completionUnits();
+        SolverEvents.endPhase(phase, this, SolverEvents.CONSTRUCTION, locationArray.size());
 
         setSolution(lowerBound,bestTour);
     }
 
     @Override
     public void run() {
-        branchAndBound(copyMatrix(distanceMatrix), copyMatrix(distanceMatrix), new LinkedList<Location>(), 0, 0);
+        if (pending.isEmpty() && nodes == 0) {
+            pending.push(root());
+        }
+
+        if (checkpointWriter != null) checkpointWriter.start();
+
+        Object phase = SolverEvents.beginPhase();
+        sampleTime = System.nanoTime();
+        sampleNodes = nodes;
+        while (!pending.isEmpty() && !stopped) {
+            load(pending.pop());
+            branchAndBound();
+        }
+        SolverEvents.endPhase(phase, this, SolverEvents.BRANCH_AND_BOUND, locationArray.size());
+
+        if (trace != null) trace.flush();
+
+        if (polish && pending.isEmpty() && !stopped && lowerBound < Double.POSITIVE_INFINITY) polish();
+
+        // a stopped search may not have a complete tour yet
+        if (solutionCache != null && lowerBound < Double.POSITIVE_INFINITY
+                && bestTour.size() == locationArray.size()) {
+            solutionCache.store(instance.contentHash(), lowerBound, toIds(bestTour));
+        }
+
+        if (checkpointWriter != null) {
+            try {
+                checkpointWriter.finish(snapshot());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Asks a running search to return as soon as possible. May be called from
+     * any thread, the incumbent stays available.
+     */
+    public void stop() {
+        stopped = true;
+        LocalSearchETSPPC local = polisher;
+        if (local != null) local.stop();
+    }
+
+    /**
+     * Improves the incumbent by {@link LocalSearchETSPPC}, every better tour
+     * becomes the incumbent as it is found.
+     */
+    private void polish() {
+        Object phase = SolverEvents.beginPhase();
+        LocalSearchETSPPC local = new LocalSearchETSPPC(instance, bestTour);
+        local.setSolutionListener(new SolutionListener() {
+            @Override
+            public void improved(double cost, List<Location> tour) {
+                LinkedList<Location> improved = new LinkedList<Location>(tour);
+                if (unitMatrix != null) incumbentUnits = Math.min(incumbentUnits, tourUnits(improved));
+                improve(cost, improved);
+            }
+        });
+        polisher = local;
+        if (!stopped) local.run();
+        polisher = null;
+        SolverEvents.endPhase(phase, this, SolverEvents.LOCAL_SEARCH, locationArray.size());
+    }
+
+    /**
+     * @return the distance matrix, which may be shared, or null in the unit
+     *         modes. An edit of this solver copies it first.
+     */
+    double[][] getDistanceMatrix() {
+        matrixShared = true;
+        return distanceMatrix;
+    }
+
+    /**
+     * The largest power of two that keeps every distance of the instance
+     * within half of the int range, leaving room for added locations.
+     */
+    private double fixedPointScale() {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (Location l : locationArray) {
+            minX = Math.min(minX, l.getX());
+            minY = Math.min(minY, l.getY());
+            maxX = Math.max(maxX, l.getX());
+            maxY = Math.max(maxY, l.getY());
+        }
+        double diameter = locationArray.isEmpty() ? 1.0 : Math.max(1.0, Math.hypot(maxX - minX, maxY - minY));
+        return Math.scalb(1.0, Math.getExponent((MAX_UNITS / 2) / diameter));
+    }
+
+    private int toUnits(double distance) {
+        return (int) Math.min(MAX_UNITS, Math.round(distance * scale));
+    }
+
+    /**
+     * @return      a cost as a bound in units, Long.MAX_VALUE for infinity
+     */
+    private long toBoundUnits(double cost) {
+        if (cost == Double.POSITIVE_INFINITY) return Long.MAX_VALUE;
+        return (long) Math.ceil(cost * scale);
+    }
+
+    /**
+     * Periodically writes the search state to <code>file</code> while {@link #run()} is executing.
+     *
+     * @param file              the checkpoint file
+     * @param intervalMillis    time between two checkpoints
+     */
+    public void enableCheckpoint(File file, long intervalMillis) {
+        checkpointWriter = new CheckpointWriter(file, intervalMillis);
+    }
+
+    /**
+     * Records every node of the search in <code>trace</code>, which is
+     * flushed whenever {@link #run()} returns.
+     *
+     * @param trace     the trace to record into
+     */
+    public void enableTrace(SearchTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * @param polish    whether {@link #run()} improves the final tour by
+     *                  {@link LocalSearchETSPPC} once the search is complete,
+     *                  which is the default
+     */
+    public void setPolish(boolean polish) {
+        this.polish = polish;
+    }
+
+    /**
+     * Selects the order in which the search tries the cities, the default is
+     * {@link Branching#NEAREST_FIRST}. Takes effect with the next node.
+     *
+     * @param order     the branching order
+     */
+    public void setBranching(Branching order) {
+        this.order = order;
+        switch (order) {
+        case MOST_CONSTRAINED:
+            branching = new MostConstrained();
+            break;
+        case REGRET:
+            branching = new Regret();
+            break;
+        case BOUND_GUIDED:
+            branching = new BoundGuided();
+            break;
+        default:
+            branching = new NearestFirst();
+        }
+    }
+
+    /**
+     * Continues a previous run: validates and installs the incumbent and
+     * replaces the initial search node by the checkpointed frontier.
+     *
+     * @param checkpoint    a checkpoint written for the same instance
+     */
+    public void resume(SearchCheckpoint checkpoint) {
+        if (checkpoint.getInstanceHash() != instance.contentHash()) {
+            throw new IllegalArgumentException("checkpoint belongs to a different instance");
+        }
+
+        seedIncumbent(checkpoint.getIncumbentTour());
+
+        nodes = checkpoint.getNodes();
+        improvements = checkpoint.getImprovements();
+
+        schedule(checkpoint.getFrontier());
+    }
+
+    /**
+     * Replaces the subproblems the next {@link #run()} explores, e.g. by the
+     * ones produced by {@link #split(int)}.
+     *
+     * @param frames    the subproblems in processing order
+     */
+    void schedule(List<SearchCheckpoint.Frame> frames) {
+        pending.clear();
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            pending.push(frames.get(i));
+        }
+    }
+
+    /**
+     * Continues a search that was ended by {@link #stop()}, which must have
+     * been cleared by {@link #clearStop()}.
+     *
+     * @return          true if the search space is exhausted
+     */
+    boolean proceed() {
+        run();
+        return pending.isEmpty();
+    }
+
+    /**
+     * Lets the next {@link #proceed()} run. Only the caller that decides
+     * when to stop may call this, so that no stop gets lost.
+     */
+    void clearStop() {
+        stopped = false;
+    }
+
+    /**
+     * Installs a tour found earlier as incumbent if it is valid for this
+     * instance and better than the current one.
+     *
+     * @param ids       city ids of the tour
+     * @return          true if the tour became the incumbent
+     */
+    private boolean seedIncumbent(int[] ids) {
+        if (ids.length != locationArray.size()) return false;
+        for (int id : ids) {
+            if (!locationMap.containsKey(id)) return false;
+        }
+
+        LinkedList<Location> tour = toTour(ids);
+        double cost = cost(tour);
+        if (!new SolutionVerifier(instance).verify(tour, cost).isValid() || cost >= lowerBound) return false;
+
+        bestTour = tour;
+        lowerBound = cost;
+        if (unitMatrix != null) incumbentUnits = tourUnits(tour);
+        setSolution(lowerBound, bestTour);
+        return true;
+    }
+
+    /**
+     * Seeds the incumbent from the cache and stores the best tour in it when
+     * {@link #run()} ends.
+     *
+     * @param cache     the solution cache
+     */
+    public void useCache(SolutionCache cache) {
+        solutionCache = cache;
+
+        int[] cached = cache.lookup(instance.contentHash());
+        if (cached != null) seedIncumbent(cached);
+    }
+
+    /**
+     * Captures the current search state. Only the frontier is copied here,
+     * the returned callable builds the checkpoint on the checkpoint thread.
+     */
+    private Callable<SearchCheckpoint> snapshot() {
+        final List<SearchCheckpoint.Frame> frontier = frontier();
+        frontier.addAll(pending);
+
+        final List<Location> tour = bestTour;
+        final double cost = lowerBound;
+        final long nodeCount = nodes;
+        final long improvementCount = improvements;
+        final long hash = instance.contentHash();
+
+        return new Callable<SearchCheckpoint>() {
+            @Override
+            public SearchCheckpoint call() {
+                return new SearchCheckpoint(hash, cost, toIds(tour), nodeCount, improvementCount, frontier);
+            }
+        };
     }
 
     /**
-     * @param matrix        NN distance matrix
-     * @param remaining     unvisited distance matrix
-     * @param tour          current list of locations
-     * @param node          current node
-     * @param visited       last visited
+     * @return      the unexplored part of the subproblem on the stack in
+     *              processing order: the top frame, then the right branches
+     *              its ancestors still have to take, the deepest first
      */
-    public void branchAndBound(Double[][] matrix, Double[][] remaining, LinkedList<Location> tour, int node, int visited) {
+    private List<SearchCheckpoint.Frame> frontier() {
+        List<SearchCheckpoint.Frame> frames = new ArrayList<SearchCheckpoint.Frame>(depth + 1);
+        if (depth < 0) return frames;
+
+        frames.add(new SearchCheckpoint.Frame(toIds(prefix, 0, prefixLength), toIds(skipLog, frameSkipMark[depth], skipLength),
+                toId(frameNode[depth]), frameVisited[depth]));
 
-        if (visited == distanceMatrix.length - 1) return;
+        for (int d = depth - 1; d >= 0; d--) {
+            // the ancestor's prefix is one city shorter per level, its right branch also skips its node
+            int[] skippedIds = Arrays.copyOf(toIds(skipLog, frameSkipMark[d], frameSkipMark[d + 1]), frameSkipMark[d + 1] - frameSkipMark[d] + 1);
+            skippedIds[skippedIds.length - 1] = locationArray.get(frameNode[d]).getCityId();
+            frames.add(new SearchCheckpoint.Frame(toIds(prefix, 0, prefixLength - (depth - d)), skippedIds,
+                    toId(frameNearest[d]), frameRightVisited[d]));
+        }
+        return frames;
+    }
 
-        int nearest = chooseNearestNeighbor(remaining, node);
+    /**
+     * @return      the city id of an index, -1 for the index -1 of a frame without a node
+     */
+    private int toId(int index) {
+        return index < 0 ? -1 : locationArray.get(index).getCityId();
+    }
 
-        LinkedList<Location> newTour = new LinkedList<Location>(tour); //copy of the current tour for the left/right branch
+    /**
+     * @return      the city ids of <code>indices[from..to)</code>
+     */
+    private int[] toIds(int[] indices, int from, int to) {
+        int[] ids = new int[to - from];
+        for (int i = from; i < to; i++) {
+            ids[i - from] = locationArray.get(indices[i]).getCityId();
+        }
+        return ids;
+    }
 
-        // left branching, pick a node and prove its a better tour
-        if (!violatedConstraint(locationArray.get(node).getCityId(),newTour)) { //check if the new node would violate constraint
+    private SearchCheckpoint.Frame root() {
+        return new SearchCheckpoint.Frame(new int[0], new int[0], toId(0), 0);
+    }
 
-            newTour.add(locationArray.get(node)); //if not, add it
+    /**
+     * Replaces the search state by a single frame for the given subproblem.
+     */
+    private void load(SearchCheckpoint.Frame f) {
+        Arrays.fill(inPrefix, false);
+        Arrays.fill(skipped, false);
+        prefixLength = 0;
+        skipLength = 0;
 
-            Double[][] matrixCopy = removeNode(copyMatrix(matrix), node); //temporary matrix of proven NN nodes
+        for (int id : f.getTour()) {
+            int i = indexOf(id);
+            prefixCost[prefixLength + 1] = prefixLength == 0 ? 0.0 : prefixCost[prefixLength] + distance(prefix[prefixLength - 1], i);
+            prefix[prefixLength++] = i;
+            inPrefix[i] = true;
+        }
+        for (int id : f.getSkipped()) {
+            int i = indexOf(id);
+            if (inPrefix[i] || skipped[i]) continue;
+            skipLog[skipLength++] = i;
+            skipped[i] = true;
+        }
 
-            //then complete the tour with NN to see if its worth pursuing
-            LinkedList<Location> newTourComplete = calculateNNTour(copyMatrix(matrixCopy), new LinkedList<Location>(newTour), nearest);
-            Double low = cost(newTourComplete);
+        depth = 0;
+        frameNode[0] = f.getNode() < 0 ? -1 : indexOf(f.getNode());
+        frameVisited[0] = f.getVisited();
+        frameSkipMark[0] = 0;
+        frameParentId[0] = -1;
+    }
+
+    /**
+     * Allocates the search state for the current number of cities.
+     */
+    private void allocateEngine() {
+        int n = locationArray.size();
+        int m = constraintList.size();
+
+        prefix = new int[n];
+        inPrefix = new boolean[n];
+        skipped = new boolean[n];
+        skipLog = new int[n];
+        frameNode = new int[n + 1];
+        frameVisited = new int[n + 1];
+        frameNearest = new int[n + 1];
+        frameRightVisited = new int[n + 1];
+        frameSkipMark = new int[n + 1];
+        frameNodeId = new long[n + 1];
+        frameParentId = new long[n + 1];
+        prefixCost = new double[n + 1];
+        depth = -1;
+        nearestBound = Double.NaN;
+        candidates = new int[Math.max(REGRET_CANDIDATES, BOUND_CANDIDATES)];
+        candidateDistance = new double[candidates.length];
+        successorCount = null;
+        // a node costs at least n steps, look at the progress event about every 2^20 steps
+        progressMask = Integer.highestOneBit(Math.max(1, (1 << 20) / Math.max(1, n))) - 1;
+
+        completion = new int[n];
+        position = new int[n];
+        inCompletion = new boolean[n];
+        rowRemoved = new boolean[n];
+        violated = new BitSet(m);
+    }
+
+    /**
+     * Indexes the constraints by city index.
+     */
+    private void indexConstraints() {
+        int n = locationArray.size();
+        int m = constraintList.size();
+
+        int[] first = constraintFirst = new int[m];
+        constraintSecond = new int[m];
+        int[] predCount = new int[n];
+        int[] fromCount = new int[n];
+        int[] ofCount = new int[n];
+        for (int k = 0; k < m; k++) {
+            PrecedenceConstraint pc = constraintList.get(k);
+            first[k] = indexOf(pc.getFirst());
+            constraintSecond[k] = indexOf(pc.getSecond());
+            predCount[constraintSecond[k]]++;
+            fromCount[first[k]]++;
+            ofCount[first[k]]++;
+            if (constraintSecond[k] != first[k]) ofCount[constraintSecond[k]]++;
+        }
+
+        predecessorIndex = new int[n][];
+        constraintsFrom = new int[n][];
+        constraintsOf = new int[n][];
+        for (int i = 0; i < n; i++) {
+            predecessorIndex[i] = new int[predCount[i]];
+            constraintsFrom[i] = new int[fromCount[i]];
+            constraintsOf[i] = new int[ofCount[i]];
+            predCount[i] = fromCount[i] = ofCount[i] = 0;
+        }
+        for (int k = 0; k < m; k++) {
+            int f = first[k];
+            int s = constraintSecond[k];
+            predecessorIndex[s][predCount[s]++] = f;
+            constraintsFrom[f][fromCount[f]++] = k;
+            constraintsOf[f][ofCount[f]++] = k;
+            if (s != f) constraintsOf[s][ofCount[s]++] = k;
+        }
+    }
+
+    private static int[] toIds(List<Location> tour) {
+        int[] ids = new int[tour.size()];
+        int i = 0;
+        for (Location l : tour) {
+            ids[i++] = l.getCityId();
+        }
+        return ids;
+    }
+
+    private LinkedList<Location> toTour(int[] ids) {
+        LinkedList<Location> tour = new LinkedList<Location>();
+        for (int id : ids) {
+            tour.add(locationMap.get(id));
+        }
+        return tour;
+    }
+
+    /**
+     * Depth-first branch and bound over the subproblem loaded by
+     * {@link #load}. Every node branches on its city: the left branch appends
+     * it to the prefix and is only explored if the NN completion of the new
+     * prefix improves the incumbent, the right branch excludes it. The left
+     * branch pushes a frame, the right branch reuses the current one. If the
+     * search is stopped, the unexplored rest of the subproblem is pushed onto
+     * the pending frames.
+     */
+    private void branchAndBound() {
+        int last = locationArray.size() - 1;
+
+        while (depth >= 0) {
+            if (stopped) { //keep the unexplored nodes for checkpoints
+                List<SearchCheckpoint.Frame> frames = frontier();
+                for (int i = frames.size() - 1; i >= 0; i--) {
+                    pending.push(frames.get(i));
+                }
+                depth = -1;
+                return;
+            }
+
+            nodes++;
+            if ((nodes & progressMask) == 0) sampleProgress();
+            if (checkpointWriter != null && checkpointWriter.isRequested()) {
+                checkpointWriter.offer(snapshot());
+            }
 
-            if (low < threshold && low < lowerBound) { //if it is a good solution
-                bestTour = newTourComplete;
-                lowerBound = low;
+            int node = frameNode[depth];
+            int visited = frameVisited[depth];
+            frameNodeId[depth] = nodes;
+            if (visited >= last || node < 0) {
+                if (trace != null) record(node, Double.NaN, SearchTrace.EXHAUSTED);
+                backtrack();
+                continue;
+            }
 
-                setSolution(lowerBound, bestTour);
+            int nearest = branching.next(node);
+            frameNearest[depth] = nearest;
 
-                //re add the default matrix and overwrite remaining matrix
-                branchAndBound(matrixCopy, matrixCopy, newTour, nearest, ++visited);
+            boolean left = branchLeft(node, nearest);
+            if (trace != null) record(node, lastBound, lastOutcome);
+            if (left) {
+                frameRightVisited[depth] = visited + 2;
+                descend(node, nearest, visited + 1);
+            } else {
+                frameRightVisited[depth] = visited + 1;
+                branchRight();
             }
         }
+    }
 
-        // right branching,
-            branchAndBound(copyMatrix(matrix), removeNode(copyMatrix(remaining), node), new LinkedList<Location>(tour), nearest, ++visited);
+    /**
+     * Records the node on top of the stack in the trace.
+     */
+    private void record(int node, double bound, byte outcome) {
+        trace.record(frameNodeId[depth], frameParentId[depth], prefixLength, node < 0 ? -1 : locationArray.get(node).getCityId(),
+                prefixCost[prefixLength], bound, outcome);
     }
 
     /**
-     * Calculate the closest nodes for each node
+     * Records a progress sample if the event is enabled and the last sample
+     * is old enough.
      */
-    public void calculateNNmatrix() {
+    private void sampleProgress() {
+        if (!SolverEvents.isProgressEnabled()) return;
 
-        for (int i = 0; i < locationArray.size(); i++)
-        {
-            for (int j = 0; j < locationArray.size(); j++)
-            {
-                if(i==j) distanceMatrix[i][j] = Double.POSITIVE_INFINITY;
-                else distanceMatrix[i][j] = locationArray.get(i).distanceTo(locationArray.get(j));
+        long now = System.nanoTime();
+        if (now - sampleTime < PROGRESS_NANOS) return;
+
+        if (Double.isNaN(nearestBound)) {
+            // every city is left along an edge at least as long as the one to its nearest neighbor
+            nearestBound = 0.0;
+            for (int i = 0; i < locationArray.size(); i++) {
+                double nearest = Double.POSITIVE_INFINITY;
+                for (int j = 0; j < locationArray.size(); j++) {
+                    nearest = Math.min(nearest, distance(i, j));
+                }
+                if (nearest < Double.POSITIVE_INFINITY) nearestBound += nearest;
             }
         }
+
+        SolverEvents.progress(nodes, (nodes - sampleNodes) * 1e9 / (now - sampleTime), depth, prefixLength, lowerBound,
+                (lowerBound - nearestBound) / lowerBound);
+
+        sampleTime = now;
+        sampleNodes = nodes;
     }
 
     /**
-     * Calculates the nearest neighbor tour
+     * Left branching, pick a node and prove its a better tour. Updates the
+     * incumbent if the NN completion of the extended prefix improves it.
      *
+     * @return          true if the left subproblem has to be explored
+     */
+    private boolean branchLeft(int node, int nearest) {
+
+        //check if the new node would violate a constraint, the prefix itself is feasible
+        lastBound = Double.NaN;
+        lastOutcome = SearchTrace.INFEASIBLE;
+        for (int p : predecessorIndex[node]) {
+            if (!inPrefix[p]) return false;
+        }
+
+        //complete the tour with NN to see if its worth pursuing
+        lastBound = Double.POSITIVE_INFINITY;
+        lastOutcome = SearchTrace.PRUNED;
+        if (!calculateNNTour(node, nearest)) return false;
+
+        if (unitMatrix != null) {
+            long low = completionUnits();
+            lastBound = low / scale;
+            if (low >= thresholdUnits || low >= incumbentUnits || low >= sharedUnits) return false;
+
+            incumbentUnits = low;
+            LinkedList<Location> tour = completedTour();
+            lastOutcome = improve(cost(tour), tour) ? SearchTrace.INCUMBENT : SearchTrace.EXPANDED;
+            return true;
+        }
+
+        double low = completionCost();
+        lastBound = low;
+        if (low >= threshold || low >= lowerBound || low >= sharedBound) return false;
+
+        //if it is a good solution
+        lastOutcome = improve(low, completedTour()) ? SearchTrace.INCUMBENT : SearchTrace.EXPANDED;
+        return true;
+    }
+
+    /**
+     * Appends <code>node</code> to the prefix and pushes the left child. The
+     * cities skipped by the current frame are eligible again in the child.
+     */
+    private void descend(int node, int nearest, int visited) {
+        for (int i = frameSkipMark[depth]; i < skipLength; i++) {
+            skipped[skipLog[i]] = false;
+        }
+        prefixCost[prefixLength + 1] = prefixLength == 0 ? 0.0 : prefixCost[prefixLength] + distance(prefix[prefixLength - 1], node);
+        prefix[prefixLength++] = node;
+        inPrefix[node] = true;
+
+        depth++;
+        frameNode[depth] = nearest;
+        frameVisited[depth] = visited;
+        frameSkipMark[depth] = skipLength;
+        frameParentId[depth] = frameNodeId[depth - 1];
+    }
+
+    /**
+     * Right branching, excludes the node of the top frame and moves on to the
+     * nearest neighbor in place.
+     */
+    private void branchRight() {
+        int node = frameNode[depth];
+        skipped[node] = true;
+        skipLog[skipLength++] = node;
+
+        frameNode[depth] = frameNearest[depth];
+        frameVisited[depth] = frameRightVisited[depth];
+        frameParentId[depth] = frameNodeId[depth];
+    }
+
+    /**
+     * Pops the top frame, undoes the left branch that created it and
+     * continues with the right branch of the parent.
+     */
+    private void backtrack() {
+        while (skipLength > frameSkipMark[depth]) {
+            skipped[skipLog[--skipLength]] = false;
+        }
+        depth--;
+        if (depth < 0) return;
+
+        inPrefix[prefix[--prefixLength]] = false;
+        for (int i = frameSkipMark[depth]; i < skipLength; i++) {
+            skipped[skipLog[i]] = true;
+        }
+        branchRight();
+    }
+
+    /**
+     * Chooses the city that is tried after a node, see {@link Branching}.
+     */
+    private interface BranchingRule {
+        /**
+         * @param node      the city of the top frame
+         * @return          a city that is neither <code>node</code>, in the
+         *                  prefix nor skipped, or -1 if there is none or
+         *                  <code>node</code> itself is in the prefix or skipped
+         */
+        int next(int node);
+    }
+
+    private final class NearestFirst implements BranchingRule {
+        @Override
+        public int next(int node) {
+            return chooseNearestNeighbor(node);
+        }
+    }
+
+    private final class MostConstrained implements BranchingRule {
+        @Override
+        public int next(int node) {
+            if (inPrefix[node] || skipped[node]) return -1;
+            if (successorCount == null) countSuccessors();
+
+            int next = -1;
+            for (int i = 0; i < locationArray.size(); i++) {
+                if (i == node || inPrefix[i] || skipped[i]) continue;
+                if (next < 0 || successorCount[i] > successorCount[next]
+                        || successorCount[i] == successorCount[next] && matrixDistance(node, i) < matrixDistance(node, next)) {
+                    next = i;
+                }
+            }
+            return next;
+        }
+    }
+
+    private final class Regret implements BranchingRule {
+        @Override
+        public int next(int node) {
+            int count = nearestCandidates(node, REGRET_CANDIDATES);
+            int next = -1;
+            double best = Double.NEGATIVE_INFINITY;
+            for (int c = 0; c < count; c++) {
+                int city = candidates[c];
+                // the cheapest way to reach the city later, from any city that is not placed yet
+                double alternative = Double.POSITIVE_INFINITY;
+                for (int j = 0; j < locationArray.size(); j++) {
+                    if (j != node && !inPrefix[j]) alternative = Math.min(alternative, matrixDistance(j, city));
+                }
+                double regret = alternative - candidateDistance[c];
+                if (regret > best) {
+                    best = regret;
+                    next = city;
+                }
+            }
+            return next;
+        }
+    }
+
+    private final class BoundGuided implements BranchingRule {
+        @Override
+        public int next(int node) {
+            int count = nearestCandidates(node, BOUND_CANDIDATES);
+            if (count <= 1) return count == 0 ? -1 : candidates[0];
+            // the left branch of an infeasible node is not evaluated, the order does not matter then
+            for (int p : predecessorIndex[node]) {
+                if (!inPrefix[p]) return candidates[0];
+            }
+
+            int next = candidates[0];
+            double best = Double.POSITIVE_INFINITY;
+            for (int c = 0; c < count; c++) {
+                if (!calculateNNTour(node, candidates[c])) continue;
+                double bound = unitMatrix != null ? completionUnits() : completionCost();
+                if (bound < best) {
+                    best = bound;
+                    next = candidates[c];
+                }
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Collects the cities nearest to <code>node</code> that are neither in
+     * the prefix nor skipped, nearest first, in <code>candidates</code> and
+     * their distances in <code>candidateDistance</code>.
      *
-     * @param matrix    matrix of available NN nodes
-     * @param tour      nodes visited so far
-     * @param start
-     * @return          complete tour
+     * @return          the number of cities collected, 0 if <code>node</code>
+     *                  is in the prefix or skipped
      */
-    public LinkedList<Location> calculateNNTour(Double[][] matrix, LinkedList<Location> tour, int start) {
+    private int nearestCandidates(int node, int limit) {
+        if (inPrefix[node] || skipped[node]) return 0;
 
-        int prev;
-        int next = start;
-        int size = tour.size();
+        int count = 0;
+        for (int i = 0; i < locationArray.size(); i++) {
+            if (i == node || inPrefix[i] || skipped[i]) continue;
+            double d = matrixDistance(node, i);
+            if (count == limit && d >= candidateDistance[count - 1]) continue;
+
+            int k = count < limit ? count++ : count - 1;
+            while (k > 0 && candidateDistance[k - 1] > d) {
+                candidates[k] = candidates[k - 1];
+                candidateDistance[k] = candidateDistance[k - 1];
+                k--;
+            }
+            candidates[k] = i;
+            candidateDistance[k] = d;
+        }
+        return count;
+    }
+
+    /**
+     * @return      the distance between two cities by index as stored in the
+     *              matrix of the current mode, in units in the unit modes
+     */
+    private double matrixDistance(int i, int j) {
+        return unitMatrix != null ? unitMatrix[i][j] : distanceMatrix[i][j];
+    }
 
+    /**
+     * Counts for every city the cities that have to come after it, by a
+     * search along the constraints from each city.
+     */
+    private void countSuccessors() {
+        int n = locationArray.size();
+        successorCount = new int[n];
+        int[] seen = new int[n];
+        int[] queue = new int[n];
+        Arrays.fill(seen, -1);
+        for (int i = 0; i < n; i++) {
+            int head = 0, tail = 0;
+            queue[tail++] = i;
+            seen[i] = i;
+            while (head < tail) {
+                int city = queue[head++];
+                for (int k : constraintsFrom[city]) {
+                    int second = constraintSecond[k];
+                    if (seen[second] != i) {
+                        seen[second] = i;
+                        queue[tail++] = second;
+                    }
+                }
+            }
+            successorCount[i] = tail - 1;
+        }
+    }
 
-        for (int i = 0; i < matrix.length - size; i++) {
-            tour.add(locationArray.get(next));
+    /**
+     * Calculates the nearest neighbor that is neither in the prefix nor
+     * skipped.
+     *
+     * @param node      last visited node
+     * @return          node's nearest neighbor, or -1
+     */
+    private int chooseNearestNeighbor(int node) {
+        if (inPrefix[node] || skipped[node]) return -1;
 
-            PrecedenceConstraint pc = returnViolatedConstraint(tour);
+        int n = locationArray.size();
+        int next = -1;
+        if (unitMatrix != null) {
+            int distance = Integer.MAX_VALUE;
+            int[] row = unitMatrix[node];
+            for (int i = 0; i < n; i++) {
+                if (row[i] < distance && !inPrefix[i] && !skipped[i]) {
+                    distance = row[i];
+                    next = i;
+                }
+            }
+            return next;
+        }
 
-            if(pc != null) { //if a constraint was violated
-                tour.remove(locationArray.get(pc.getSecond()-1)); //remove the second constraint
-                matrix[pc.getSecond()-1] = distanceMatrix[pc.getSecond()-1];
+        double distance = Double.POSITIVE_INFINITY;
+        double[] row = distanceMatrix[node];
+
+        for (int i = 0; i < n; i++) {
+            if (row[i] < distance && !inPrefix[i] && !skipped[i]) {
+                distance = row[i];
+                next = i;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Calculates the nearest neighbor tour that starts with the prefix and
+     * <code>node</code>. Whenever a city is appended before one of its
+     * predecessors, the successor of the first violated constraint is taken
+     * out again and re-appended later. The tour is left in
+     * <code>completion</code>.
+     *
+     * @param node      appended to the prefix, or -1
+     * @param start     first city after it
+     * @return          false if it got stuck before all cities were added
+     */
+    private boolean calculateNNTour(int node, int start) {
+        int n = locationArray.size();
+
+        Arrays.fill(inCompletion, false);
+        violated.clear();
+        completionLength = 0;
+        for (int i = 0; i < prefixLength; i++) {
+            appendCompletion(prefix[i]);
+        }
+        if (node >= 0) appendCompletion(node);
+        System.arraycopy(inCompletion, 0, rowRemoved, 0, n);
+        violated.clear(); //the prefix is feasible
+
+        int size = completionLength;
+        int next = start;
+
+        for (int i = 0; i < n - size; i++) {
+            if (next < 0) break;
+            appendCompletion(next);
+
+            int k = violated.nextSetBit(0);
+            if (k >= 0) { //if a constraint was violated, remove its second city
+                int second = constraintSecond[k];
+                removeCompletion(second);
+                rowRemoved[second] = false;
                 i--;
             }
-            prev = next;
-            next = chooseNearestNeighbor(matrix,prev);
-            matrix = removeNode(matrix, prev);
+
+            int prev = next;
+            next = -1;
+            if (!rowRemoved[prev]) next = nearestRemaining(prev);
+            rowRemoved[prev] = true;
+        }
+
+        return completionLength == n;
+    }
+
+    /**
+     * @return      the nearest city to <code>prev</code> that is not yet part
+     *              of the NN tour, or -1
+     */
+    private int nearestRemaining(int prev) {
+        int n = locationArray.size();
+        int next = -1;
+        if (unitMatrix != null) {
+            int distance = Integer.MAX_VALUE;
+            int[] row = unitMatrix[prev];
+            for (int j = 0; j < n; j++) {
+                if (row[j] < distance && !rowRemoved[j]) {
+                    distance = row[j];
+                    next = j;
+                }
+            }
+            return next;
+        }
+
+        double distance = Double.POSITIVE_INFINITY;
+        double[] row = distanceMatrix[prev];
+        for (int j = 0; j < n; j++) {
+            if (row[j] < distance && !rowRemoved[j]) {
+                distance = row[j];
+                next = j;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return      cost of the complete tour left by
+     *              {@link #calculateNNTour(int, int)}, summed in tour order
+     *              exactly like cost(List)
+     */
+    private double completionCost() {
+        int n = completionLength;
+        double sum = 0.0;
+        for (int i = 0; i < n - 1; i++) {
+            sum += distanceMatrix[completion[i]][completion[i + 1]];
+        }
+        if (n > 1) sum += distanceMatrix[completion[n - 1]][completion[0]];
+        return sum;
+    }
+
+    /**
+     * @return      cost in units of the complete tour left by
+     *              {@link #calculateNNTour(int, int)}
+     */
+    private long completionUnits() {
+        int n = completionLength;
+        long sum = 0;
+        for (int i = 0; i < n - 1; i++) {
+            sum += unitMatrix[completion[i]][completion[i + 1]];
+        }
+        if (n > 1) sum += unitMatrix[completion[n - 1]][completion[0]];
+        return sum;
+    }
+
+    /**
+     * @return      cost in units of a complete tour
+     */
+    private long tourUnits(List<Location> tour) {
+        int n = tour.size();
+        int[] indices = new int[n];
+        int i = 0;
+        for (Location l : tour) {
+            indices[i++] = indexOf(l.getCityId());
+        }
+        long sum = 0;
+        for (i = 0; i < n - 1; i++) {
+            sum += unitMatrix[indices[i]][indices[i + 1]];
+        }
+        if (n > 1) sum += unitMatrix[indices[n - 1]][indices[0]];
+        return sum;
+    }
+
+    /**
+     * @return      the distance between two cities by index, also in the unit
+     *              modes, POSITIVE_INFINITY if they are the same
+     */
+    private double distance(int i, int j) {
+        if (distanceMatrix != null) return distanceMatrix[i][j];
+        return i == j ? Double.POSITIVE_INFINITY : locationArray.get(i).distanceTo(locationArray.get(j));
+    }
+
+    private void appendCompletion(int city) {
+        completion[completionLength] = city;
+        position[city] = completionLength++;
+        inCompletion[city] = true;
+
+        //a constraint becomes violated if its first city comes after its second one
+        for (int k : constraintsFrom[city]) {
+            int second = constraintSecond[k];
+            if (second != city && inCompletion[second]) violated.set(k);
+        }
+    }
+
+    private void removeCompletion(int city) {
+        for (int i = position[city] + 1; i < completionLength; i++) {
+            completion[i - 1] = completion[i];
+            position[completion[i - 1]] = i - 1;
+        }
+        completionLength--;
+        inCompletion[city] = false;
+
+        for (int k : constraintsOf[city]) {
+            violated.clear(k);
+        }
+    }
+
+    /**
+     * @return      the tour left by {@link #calculateNNTour(int, int)}
+     */
+    private LinkedList<Location> completedTour() {
+        LinkedList<Location> tour = new LinkedList<Location>();
+        for (int i = 0; i < completionLength; i++) {
+            tour.add(locationArray.get(completion[i]));
         }
         return tour;
     }
 
+    /**
+     * Records a new incumbent and reports it to the listener. The tour is
+     * only kept if {@link #setSolution(double, List)} accepts it.
+     *
+     * @return      false if it was not kept because it is not better in fact
+     */
+    private boolean improve(double cost, LinkedList<Location> tour) {
+        // in the unit modes a tour that is shorter in units may be longer in fact
+        if (!setSolution(cost, tour)) return false;
+        SolverEvents.incumbent(this, cost, lowerBound, tour.size());
+        bestTour = tour;
+        lowerBound = cost;
+        improvements++;
+
+        if (solutionListener != null) solutionListener.improved(cost, tour);
+        return true;
+    }
 
     /**
-     *  This method checks if the node being considered for the tour violates any of the constraints
+     * @param listener      notified on the search thread whenever the incumbent improves
+     */
+    public void setSolutionListener(SolutionListener listener) {
+        solutionListener = listener;
+    }
+
+    /**
+     * Lowers the bound used for pruning to a cost found elsewhere, e.g. by
+     * another worker. May be called from any thread.
      *
-     * @param node      the next tour candidate
-     * @return          if true, then this node can be chosen for the tour, because it doesn't violate any constraints
+     * @param bound     cost of a known tour
      */
-    public boolean violatedConstraint(final int node, LinkedList<Location> currentTour) {
+    public void updateBound(double bound) {
+        if (bound < sharedBound) {
+            sharedBound = bound;
+            sharedUnits = toBoundUnits(bound);
+        }
+    }
 
-        for(PrecedenceConstraint pc : constraintList) {
-            if(pc.getSecond() == node) { // if this node has a constraint on it
-                if(!currentTour.contains(locationArray.get(pc.getFirst() - 1))) { // and the tour doesnt contain the previous node, you are in trouble
-                    return true;
+    /**
+     * Splits the search space into subproblems by fixing tour prefixes. A
+     * prefix is only ever replaced by all of its precedence-feasible
+     * extensions, so together the prefixes cover every feasible tour.
+     * Cheaper prefixes come first.
+     *
+     * @param count     the desired number of subproblems
+     * @return          the subproblems, each given by a fixed tour prefix
+     */
+    public List<SearchCheckpoint.Frame> split(int count) {
+        ArrayDeque<LinkedList<Location>> queue = new ArrayDeque<LinkedList<Location>>();
+        queue.add(new LinkedList<Location>());
+
+        // replace the shortest prefix by all its feasible extensions until there are enough
+        while (queue.size() < count && queue.peek().size() < locationArray.size() - 1) {
+            LinkedList<Location> prefix = queue.poll();
+            for (Location l : locationArray) {
+                if (!prefix.contains(l) && !violatedConstraint(l.getCityId(), prefix)) {
+                    LinkedList<Location> extended = new LinkedList<Location>(prefix);
+                    extended.add(l);
+                    queue.add(extended);
                 }
-                if(violatedConstraint(pc.getFirst(), currentTour)) return true; // check if there is a constraint for the previous node
             }
         }
-        return false; // otherwise, you will live to see another day
+        List<LinkedList<Location>> prefixes = new ArrayList<LinkedList<Location>>(queue);
+
+        Collections.sort(prefixes, new Comparator<LinkedList<Location>>() {
+            @Override
+            public int compare(LinkedList<Location> a, LinkedList<Location> b) {
+                return Double.compare(pathCost(a), pathCost(b));
+            }
+        });
+
+        List<SearchCheckpoint.Frame> frames = new ArrayList<SearchCheckpoint.Frame>(prefixes.size());
+        for (LinkedList<Location> prefix : prefixes) {
+            // branch on the nearest city that is not part of the prefix
+            int node = 0;
+            if (!prefix.isEmpty()) {
+                double distance = Double.POSITIVE_INFINITY;
+                int last = indexOf(prefix.getLast().getCityId());
+                for (int i = 0; i < locationArray.size(); i++) {
+                    double d = distance(last, i);
+                    if (d < distance && !prefix.contains(locationArray.get(i))) {
+                        distance = d;
+                        node = i;
+                    }
+                }
+            }
+            frames.add(new SearchCheckpoint.Frame(toIds(prefix), new int[0], toId(node), prefix.size()));
+        }
+        return frames;
+    }
+
+    /**
+     * @return          length of the open path, without the closing edge
+     */
+    private static double pathCost(List<Location> path) {
+        double sum = 0.0;
+        for (int i = 0; i < path.size() - 1; i++) {
+            sum += path.get(i).distanceTo(path.get(i + 1));
+        }
+        return sum;
+    }
+
+    /**
+     * Explores a single subproblem, e.g. one produced by {@link #split(int)}.
+     *
+     * @param frame     the subproblem
+     */
+    public void explore(SearchCheckpoint.Frame frame) {
+        pending.push(frame);
+        run();
+    }
+
+    /**
+     * @param cityId    id of a location of the instance
+     * @return          its position in locationArray and the distance matrix
+     */
+    private int indexOf(int cityId) {
+        return indexMap.get(cityId);
     }
 
+    /*
+     * Incremental re-optimization. An edit changes the instance of a solver
+     * that is not running and returns a new solver for the changed instance
+     * that takes over the state of this one, which must not be used
+     * afterwards. The distance matrix grows by a row and a column in
+     * amortized linear time, or shrinks by moving the last city into the
+     * freed slot; the precedence index is patched for the cities concerned
+     * only. The best tour is repaired to become the first solution of the new
+     * solver, whose run() starts a fresh search pruned by it. The
+     * ETSPPCInstance passed to the constructor is updated as well.
+     */
+
     /**
-     * checks if a constraint is violated
+     * Continues with the state of a solver whose instance was just edited.
      *
-     * @return      the violated constraint
+     * @param edited    the solver that made the edit
+     * @param tour      its best tour repaired for the changed instance
      */
-    public PrecedenceConstraint returnViolatedConstraint(LinkedList<Location> currentTour) {
-        Location first,second;
+    private ETSPPC(ETSPPC edited, LinkedList<Location> tour) {
+        instance = edited.instance;
+        constraintList = edited.constraintList;
+        locationMap = edited.locationMap;
+        locationArray = edited.locationArray;
+        indexMap = edited.indexMap;
+        threshold = edited.threshold;
+
+        distanceMatrix = edited.distanceMatrix;
+        unitMatrix = edited.unitMatrix;
+        scale = edited.scale;
+        thresholdUnits = edited.thresholdUnits;
+        predecessorIndex = edited.predecessorIndex;
+        constraintsFrom = edited.constraintsFrom;
+        constraintsOf = edited.constraintsOf;
+        constraintFirst = edited.constraintFirst;
+        constraintSecond = edited.constraintSecond;
+
+        polish = edited.polish;
+        solutionListener = edited.solutionListener;
+        solutionCache = edited.solutionCache;
+        setBranching(edited.order);
+
+        allocateEngine();
 
-        for(PrecedenceConstraint pc : constraintList) {
-            first = locationArray.get(pc.getFirst() - 1);
-            second = locationArray.get(pc.getSecond() - 1);
+        bestTour = tour;
+        lowerBound = cost(tour);
+        if (unitMatrix != null) incumbentUnits = tourUnits(tour);
+        setSolution(lowerBound, bestTour);
+    }
+
+    /**
+     * Adds a stop, inserted into the best tour at its cheapest position.
+     *
+     * @param location  the new location, its id must not be in use
+     * @return          the solver for the changed instance
+     */
+    public ETSPPC addLocation(Location location) {
+        if (locationMap.containsKey(location.getCityId())) {
+            throw new IllegalArgumentException("duplicate city id " + location.getCityId());
+        }
 
-            if (currentTour.contains(first) && currentTour.contains(second) && currentTour.indexOf(first) > currentTour.indexOf(second)) {
-                return pc;
+        int n = locationArray.size();
+        reserveMatrix(n + 1);
+        if (unitMatrix != null) {
+            for (int i = 0; i < n; i++) {
+                unitMatrix[i][n] = toUnits(locationArray.get(i).distanceTo(location));
+                unitMatrix[n][i] = toUnits(location.distanceTo(locationArray.get(i)));
             }
+            unitMatrix[n][n] = Integer.MAX_VALUE;
+        } else {
+            for (int i = 0; i < n; i++) {
+                distanceMatrix[i][n] = locationArray.get(i).distanceTo(location);
+                distanceMatrix[n][i] = location.distanceTo(locationArray.get(i));
+            }
+            distanceMatrix[n][n] = Double.POSITIVE_INFINITY;
         }
-        return null;
+
+        locationArray.add(location);
+        locationMap.put(location.getCityId(), location);
+        indexMap.put(location.getCityId(), n);
+
+        // the new city is unconstrained
+        predecessorIndex = Arrays.copyOf(predecessorIndex, n + 1);
+        constraintsFrom = Arrays.copyOf(constraintsFrom, n + 1);
+        constraintsOf = Arrays.copyOf(constraintsOf, n + 1);
+        predecessorIndex[n] = constraintsFrom[n] = constraintsOf[n] = new int[0];
+
+        // so every position is feasible
+        Location[] stops = bestTour.toArray(new Location[bestTour.size()]);
+        int position = stops.length;
+        double best = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < stops.length; i++) {
+            Location a = stops[i];
+            Location b = stops[(i + 1) % stops.length];
+            double delta = a.distanceTo(location) + location.distanceTo(b) - a.distanceTo(b);
+            if (delta < best) {
+                best = delta;
+                position = i + 1;
+            }
+        }
+        LinkedList<Location> tour = new LinkedList<Location>(Arrays.asList(stops));
+        tour.add(position, location);
+
+        return new ETSPPC(this, tour);
     }
 
     /**
-     * checks if there are any unvisited nodes left in the matrix
-     *
+     * Removes a stop together with all constraints that mention it. The last
+     * city of locationArray takes its index.
      *
-     * @param matrix        list of unvisited NN
-     * @param node          current node
-     * @return              [true/false] anything left to explore
+     * @param cityId    id of the location to remove
+     * @return          the solver for the changed instance
      */
-    public boolean nodeVisited(Double[][] matrix, int node) {
-        for(int i = 0; i < matrix[0].length; i++) {
-            if(matrix[node][i] != Double.POSITIVE_INFINITY)
-                return false;
+    public ETSPPC removeLocation(int cityId) {
+        Location location = locationMap.get(cityId);
+        if (location == null) {
+            throw new IllegalArgumentException("unknown city id " + cityId);
         }
-        return true;
+        if (locationArray.size() == 1) {
+            throw new IllegalStateException("cannot remove the last location");
+        }
+
+        int k = indexOf(cityId);
+        while (constraintsOf[k].length > 0) {
+            dropConstraint(constraintsOf[k][0]);
+        }
+
+        int n = locationArray.size();
+        int last = n - 1;
+        reserveMatrix(n);
+        if (k != last) {
+            // column, then row, the diagonal entry of the last city moves along
+            if (unitMatrix != null) {
+                for (int i = 0; i < n; i++) {
+                    unitMatrix[i][k] = unitMatrix[i][last];
+                }
+                int[] row = unitMatrix[k];
+                unitMatrix[k] = unitMatrix[last];
+                unitMatrix[last] = row;
+            } else {
+                for (int i = 0; i < n; i++) {
+                    distanceMatrix[i][k] = distanceMatrix[i][last];
+                }
+                double[] row = distanceMatrix[k];
+                distanceMatrix[k] = distanceMatrix[last];
+                distanceMatrix[last] = row;
+            }
+
+            Location moved = locationArray.get(last);
+            locationArray.set(k, moved);
+            indexMap.put(moved.getCityId(), k);
+
+            predecessorIndex[k] = predecessorIndex[last];
+            constraintsFrom[k] = constraintsFrom[last];
+            constraintsOf[k] = constraintsOf[last];
+            for (int c : constraintsOf[k]) {
+                if (constraintSecond[c] == last) constraintSecond[c] = k;
+                if (constraintFirst[c] == last) {
+                    constraintFirst[c] = k;
+                    replace(predecessorIndex[constraintSecond[c]], last, k);
+                }
+            }
+        }
+
+        locationArray.remove(last);
+        locationMap.remove(cityId);
+        indexMap.remove(cityId);
+        predecessorIndex = Arrays.copyOf(predecessorIndex, last);
+        constraintsFrom = Arrays.copyOf(constraintsFrom, last);
+        constraintsOf = Arrays.copyOf(constraintsOf, last);
+
+        // dropping a stop keeps every precedence satisfied
+        LinkedList<Location> tour = new LinkedList<Location>(bestTour);
+        tour.remove(location);
+
+        return new ETSPPC(this, tour);
     }
 
     /**
-     * Removes a node from the NN matrix, by filling its data with POS INF
+     * Adds a precedence constraint, moving as few stops of the best tour as
+     * needed to satisfy it.
      *
+     * @param pc    the constraint, both cities must exist
+     * @return      the solver for the changed instance
+     * @throws IllegalArgumentException if a city is unknown or the constraint
+     *         closes a cycle, this solver is unchanged then
+     */
+    public ETSPPC addConstraint(PrecedenceConstraint pc) {
+        if (!locationMap.containsKey(pc.getFirst()) || !locationMap.containsKey(pc.getSecond())) {
+            throw new IllegalArgumentException("constraint refers to an unknown city");
+        }
+
+        int m = constraintList.size();
+        if (m == constraintSecond.length) {
+            constraintFirst = Arrays.copyOf(constraintFirst, Math.max(4, 2 * m));
+            constraintSecond = Arrays.copyOf(constraintSecond, constraintFirst.length);
+        }
+        int f = indexOf(pc.getFirst());
+        int s = indexOf(pc.getSecond());
+        constraintList.add(pc);
+        constraintFirst[m] = f;
+        constraintSecond[m] = s;
+        predecessorIndex[s] = append(predecessorIndex[s], f);
+        constraintsFrom[f] = append(constraintsFrom[f], m);
+        constraintsOf[f] = append(constraintsOf[f], m);
+        if (s != f) constraintsOf[s] = append(constraintsOf[s], m);
+
+        LinkedList<Location> tour = repairPrecedence(bestTour);
+        if (tour == null) {
+            dropConstraint(m);
+            throw new IllegalArgumentException("constraint " + pc.getFirst() + " before " + pc.getSecond() + " closes a cycle");
+        }
+
+        return new ETSPPC(this, tour);
+    }
+
+    /**
+     * Removes a precedence constraint, the best tour stays feasible. The last
+     * constraint of the instance takes its position.
      *
-     * @param matrix    original matrix
-     * @param node      node to be removed
-     * @return          new matrix without the node data
+     * @param pc    a constraint equal in first and second to one of the instance
+     * @return      the solver for the changed instance
+     * @throws IllegalArgumentException if there is no such constraint
+     */
+    public ETSPPC removeConstraint(PrecedenceConstraint pc) {
+        Integer f = indexMap.get(pc.getFirst());
+        if (f != null) {
+            for (int c : constraintsFrom[f]) {
+                if (constraintList.get(c).getSecond() == pc.getSecond()) {
+                    dropConstraint(c);
+                    return new ETSPPC(this, new LinkedList<Location>(bestTour));
+                }
+            }
+        }
+        throw new IllegalArgumentException("no constraint " + pc.getFirst() + " before " + pc.getSecond());
+    }
+
+    /**
+     * Removes the constraint at position <code>c</code> of constraintList
+     * from the index and moves the last constraint into its place.
      */
-    public Double[][] removeNode(Double[][] matrix, int node) {
-        Double[][] newMatrix = copyMatrix(matrix);
-        for (int i = 0; i < matrix[0].length; i++) {
-            newMatrix[node][i] = Double.POSITIVE_INFINITY;
+    private void dropConstraint(int c) {
+        int f = constraintFirst[c];
+        int s = constraintSecond[c];
+        predecessorIndex[s] = remove(predecessorIndex[s], f);
+        constraintsFrom[f] = remove(constraintsFrom[f], c);
+        constraintsOf[f] = remove(constraintsOf[f], c);
+        if (s != f) constraintsOf[s] = remove(constraintsOf[s], c);
+
+        int last = constraintList.size() - 1;
+        if (c != last) {
+            int lf = constraintFirst[last];
+            int ls = constraintSecond[last];
+            constraintList.set(c, constraintList.get(last));
+            constraintFirst[c] = lf;
+            constraintSecond[c] = ls;
+            replace(constraintsFrom[lf], last, c);
+            replace(constraintsOf[lf], last, c);
+            if (ls != lf) replace(constraintsOf[ls], last, c);
         }
-        return newMatrix;
+        constraintList.remove(last);
     }
 
     /**
-     * @param m The array we want to copy
-     * @return Returns a copy of the array m
+     * Makes sure the distance matrix has room for <code>size</code> cities
+     * and is not shared, doubling its size when it is full.
      */
-    private Double[][] copyMatrix(Double[][] m) {
-        Double[][] c = new Double[m.length][m[0].length];
-        for (int i = 0; i < m.length; i++) {
-            for (int j = 0; j < m[0].length; j++) {
-                c[i][j] = new Double(m[i][j]);
+    private void reserveMatrix(int size) {
+        int n = locationArray.size();
+        int capacity = unitMatrix != null ? unitMatrix.length : distanceMatrix.length;
+        if (size <= capacity && !matrixShared) return;
+        if (size > capacity) capacity = Math.max(4, 2 * size);
+
+        if (unitMatrix != null) {
+            int[][] matrix = new int[capacity][];
+            for (int i = 0; i < capacity; i++) {
+                matrix[i] = i < n ? Arrays.copyOf(unitMatrix[i], capacity) : new int[capacity];
             }
+            unitMatrix = matrix;
+        } else {
+            double[][] matrix = new double[capacity][];
+            for (int i = 0; i < capacity; i++) {
+                matrix[i] = i < n ? Arrays.copyOf(distanceMatrix[i], capacity) : new double[capacity];
+            }
+            distanceMatrix = matrix;
         }
+        matrixShared = false;
+    }
 
-        return c;
+    private static int[] append(int[] values, int value) {
+        int[] result = Arrays.copyOf(values, values.length + 1);
+        result[values.length] = value;
+        return result;
     }
 
+    /**
+     * @return      <code>values</code> without the first occurrence of <code>value</code>
+     */
+    private static int[] remove(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                int[] result = new int[values.length - 1];
+                System.arraycopy(values, 0, result, 0, i);
+                System.arraycopy(values, i + 1, result, i, values.length - i - 1);
+                return result;
+            }
+        }
+        return values;
+    }
 
     /**
-     * Calculates the next nearest neighbor
-     *
+     * Replaces the first occurrence of <code>value</code> in place.
+     */
+    private static void replace(int[] values, int value, int replacement) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                values[i] = replacement;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reorders a tour so that it satisfies all constraints: a topological
+     * sort of the precedence graph that always takes the available stop that
+     * comes first in the given tour. A feasible tour is returned unchanged.
      *
-     * @param matrix    NN matrix
-     * @param node      last visited node
-     * @return          node's nearest neighbor
+     * @return      the repaired tour, or null if the constraints contain a cycle
      */
-    public int chooseNearestNeighbor(Double[][] matrix, int node) {
+    private LinkedList<Location> repairPrecedence(List<Location> tour) {
+        final HashMap<Integer, Integer> position = new HashMap<Integer, Integer>();
+        HashMap<Integer, Integer> pendingPreds = new HashMap<Integer, Integer>();
+        HashMap<Integer, ArrayList<Integer>> successors = new HashMap<Integer, ArrayList<Integer>>();
+        for (Location l : tour) {
+            position.put(l.getCityId(), position.size());
+            pendingPreds.put(l.getCityId(), 0);
+        }
+        for (PrecedenceConstraint pc : constraintList) {
+            pendingPreds.put(pc.getSecond(), pendingPreds.get(pc.getSecond()) + 1);
+            ArrayList<Integer> succ = successors.get(pc.getFirst());
+            if (succ == null) {
+                succ = new ArrayList<Integer>();
+                successors.put(pc.getFirst(), succ);
+            }
+            succ.add(pc.getSecond());
+        }
 
-        double distance = Double.POSITIVE_INFINITY;
-        int next = -1;
+        PriorityQueue<Integer> available = new PriorityQueue<Integer>(Math.max(1, tour.size()), new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return position.get(a).compareTo(position.get(b));
+            }
+        });
+        for (Map.Entry<Integer, Integer> e : pendingPreds.entrySet()) {
+            if (e.getValue() == 0) available.add(e.getKey());
+        }
 
-        for (int i = 0; i < matrix[0].length; i++) {
-            if(matrix[node][i] < distance && !nodeVisited(matrix, i)) {
-                distance = matrix[node][i];
-                next = i;
+        LinkedList<Location> repaired = new LinkedList<Location>();
+        while (!available.isEmpty()) {
+            int id = available.poll();
+            repaired.add(locationMap.get(id));
+            ArrayList<Integer> succ = successors.get(id);
+            if (succ == null) continue;
+            for (int s : succ) {
+                int left = pendingPreds.get(s) - 1;
+                pendingPreds.put(s, left);
+                if (left == 0) available.add(s);
             }
         }
-        return next;
+        return repaired.size() == tour.size() ? repaired : null;
+    }
+
+    /**
+     * Calculate the closest nodes for each node
+     */
+    public void calculateNNmatrix() {
+
+        for (int i = 0; i < locationArray.size(); i++)
+        {
+            for (int j = 0; j < locationArray.size(); j++)
+            {
+                if (unitMatrix != null) {
+                    unitMatrix[i][j] = i == j ? Integer.MAX_VALUE : toUnits(locationArray.get(i).distanceTo(locationArray.get(j)));
+                }
+                else if(i==j) distanceMatrix[i][j] = Double.POSITIVE_INFINITY;
+                else distanceMatrix[i][j] = locationArray.get(i).distanceTo(locationArray.get(j));
+            }
+        }
+    }
+
+    /**
+     *  This method checks if the node being considered for the tour violates any of the constraints
+     *
+     * @param node      the next tour candidate
+     * @return          if true, then this node can be chosen for the tour, because it doesn't violate any constraints
+     */
+    public boolean violatedConstraint(final int node, LinkedList<Location> currentTour) {
+
+        for(int p : predecessorIndex[indexOf(node)]) { // if this node has a constraint on it
+            Location first = locationArray.get(p);
+            if(!currentTour.contains(first)) { // and the tour doesnt contain the previous node, you are in trouble
+                return true;
+            }
+            if(violatedConstraint(first.getCityId(), currentTour)) return true; // check if there is a constraint for the previous node
+        }
+        return false; // otherwise, you will live to see another day
     }
 
     /**
@@ -259,23 +1751,24 @@ public class ETSPPC extends AbstractETSPPC {
      */
     public Location chooseNextNode(LinkedList<Location> neighborRun) {
 
-        int id = 0;
+        int index = 0;
         double dist = Double.MAX_VALUE;
+        int last = indexOf(neighborRun.get(neighborRun.size()-1).getCityId());
 
         //get the closest node
-        for (int i = 1; i <= locationArray.size(); i++) {
+        for (int i = 0; i < locationArray.size(); i++) {
 
-            if(!neighborRun.contains(locationArray.get(i-1)) && !violatedConstraint(i, neighborRun)) //if the node is not in the tour yes
+            if(!neighborRun.contains(locationArray.get(i)) && !violatedConstraint(locationArray.get(i).getCityId(), neighborRun)) //if the node is not in the tour yes
             {
-                double distTOthisNode = distanceMatrix[neighborRun.get(neighborRun.size()-1).getCityId()-1][i-1];
+                double distTOthisNode = distance(last, i);
 
                 if(dist > distTOthisNode) {
                     dist = distTOthisNode;
-                    id = i;
+                    index = i;
                 }
             }
         }
-        return locationArray.get(id-1);
+        return locationArray.get(index);
     }
 
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package ads2.ss14.etsppc;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -50,4 +51,41 @@ public class ETSPPCInstance {
 	public double getThreshold() {
 		return threshold;
 	}
+
+	/**
+	 * 64 bit FNV-1a hash over the coordinates (in id order) and the
+	 * constraints (in list order). The threshold is not part of the hash, so
+	 * instances that only differ in their threshold share it.
+	 *
+	 * @return the content hash of this instance
+	 */
+	public long contentHash() {
+		int[] ids = new int[allLocations.size()];
+		int i = 0;
+		for (Integer id : allLocations.keySet()) {
+			ids[i++] = id;
+		}
+		Arrays.sort(ids);
+
+		long hash = 0xcbf29ce484222325L;
+		for (int id : ids) {
+			Location l = allLocations.get(id);
+			hash = fnv(hash, id);
+			hash = fnv(hash, Double.doubleToLongBits(l.getX()));
+			hash = fnv(hash, Double.doubleToLongBits(l.getY()));
+		}
+		for (PrecedenceConstraint pc : constraints) {
+			hash = fnv(hash, pc.getFirst());
+			hash = fnv(hash, pc.getSecond());
+		}
+		return hash;
+	}
+
+	private static long fnv(long hash, long value) {
+		for (int b = 0; b < 8; b++) {
+			hash ^= (value >>> (8 * b)) & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
 }
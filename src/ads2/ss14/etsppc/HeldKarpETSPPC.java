@@ -0,0 +1,180 @@
+package ads2.ss14.etsppc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exact dynamic program for small instances. For every possible first city
+ * it computes the shortest path over each set of visited cities ending in
+ * each city, extending a path only by cities whose predecessors are all in
+ * the set. Time and memory grow with 2^n, so at most {@link #MAX_CITIES}
+ * cities are accepted.
+ *
+ * <p>
+ * {@link #run()} ends when the optimum is found or when {@link #stop()} is
+ * called, {@link #proceed()} continues with the first city that was not
+ * finished.
+ * </p>
+ */
+public class HeldKarpETSPPC extends AbstractETSPPC {
+
+	public static final int MAX_CITIES = 16;
+
+	private final Location[] cities;
+	private final double[][] dist;
+	/** bit set of the predecessors of each city */
+	private final int[] predMask;
+
+	/** best path cost per set of cities and last city, flattened */
+	private final double[] cost;
+	private final byte[] parent;
+
+	/** next first city to try */
+	private int start;
+	private volatile boolean stopped;
+	private SolutionListener solutionListener;
+
+	/**
+	 * @param instance      an instance with at most {@link #MAX_CITIES} cities
+	 */
+	public HeldKarpETSPPC(ETSPPCInstance instance) {
+		int n = instance.getAllLocations().size();
+		if (n > MAX_CITIES) {
+			throw new IllegalArgumentException(n + " cities, at most " + MAX_CITIES + " are supported");
+		}
+
+		cities = new Location[n];
+		Map<Integer, Integer> index = new HashMap<Integer, Integer>(n * 2);
+		int i = 0;
+		for (Location l : instance.getAllLocations().values()) {
+			cities[i] = l;
+			index.put(l.getCityId(), i++);
+		}
+		dist = new double[n][n];
+		for (i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				dist[i][j] = cities[i].distanceTo(cities[j]);
+			}
+		}
+		predMask = new int[n];
+		for (PrecedenceConstraint pc : instance.getConstraints()) {
+			predMask[index.get(pc.getSecond())] |= 1 << index.get(pc.getFirst());
+		}
+
+		cost = new double[(1 << n) * n];
+		parent = new byte[(1 << n) * n];
+	}
+
+	@Override
+	public void run() {
+		for (; start < cities.length; start++) {
+			if (predMask[start] != 0) continue; // cannot be the first city
+			if (!solveFrom(start)) return;
+		}
+	}
+
+	/**
+	 * Continues a search that was ended by {@link #stop()}, which must have
+	 * been cleared by {@link #clearStop()}.
+	 *
+	 * @return      true if the optimum was found
+	 */
+	boolean proceed() {
+		run();
+		return start == cities.length;
+	}
+
+	/**
+	 * Asks a running search to return as soon as possible. May be called from
+	 * any thread.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Lets the next {@link #proceed()} run. Only the caller that decides
+	 * when to stop may call this, so that no stop gets lost.
+	 */
+	void clearStop() {
+		stopped = false;
+	}
+
+	/**
+	 * @param listener      notified whenever a better tour is found
+	 */
+	public void setSolutionListener(SolutionListener listener) {
+		solutionListener = listener;
+	}
+
+	/**
+	 * @return      false if the search was stopped
+	 */
+	private boolean solveFrom(int first) {
+		int n = cities.length;
+		int full = (1 << n) - 1;
+
+		Arrays.fill(cost, Double.POSITIVE_INFINITY);
+		cost[(1 << first) * n + first] = 0.0;
+
+		for (int set = 1; set <= full; set++) {
+			if ((set & 1023) == 0 && stopped) return false;
+			if ((set & (1 << first)) == 0) continue;
+
+			for (int last = 0; last < n; last++) {
+				double c = cost[set * n + last];
+				if (c == Double.POSITIVE_INFINITY) continue;
+
+				for (int next = 0; next < n; next++) {
+					if ((set & (1 << next)) != 0 || (predMask[next] & ~set) != 0) continue;
+					int k = (set | (1 << next)) * n + next;
+					double d = c + dist[last][next];
+					if (d < cost[k]) {
+						cost[k] = d;
+						parent[k] = (byte) last;
+					}
+				}
+			}
+		}
+
+		int best = -1;
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (int last = 0; last < n; last++) {
+			double c = cost[full * n + last] + dist[last][first];
+			if (c < bestCost) {
+				bestCost = c;
+				best = last;
+			}
+		}
+		if (best >= 0) report(best);
+		return true;
+	}
+
+	/**
+	 * Rebuilds the tour that ends in <code>last</code> and reports it with its
+	 * cost computed like the checker does.
+	 */
+	private void report(int last) {
+		int n = cities.length;
+		LinkedList<Location> tour = new LinkedList<Location>();
+		int set = (1 << n) - 1;
+		for (int city = last, k = 0; k < n; k++) {
+			tour.addFirst(cities[city]);
+			int previous = parent[set * n + city];
+			set &= ~(1 << city);
+			city = previous;
+		}
+
+		List<Location> solution = new ArrayList<Location>(tour);
+		double value = SolutionVerifier.objectiveValue(solution);
+		double previous = getBestSolution() == null ? Double.POSITIVE_INFINITY : getBestSolution().getUpperBound();
+		if (setSolution(value, solution)) {
+			SolverEvents.incumbent(this, value, previous, solution.size());
+			if (solutionListener != null) solutionListener.improved(value, solution);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package ads2.ss14.etsppc;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates synthetic instances in the TSPLIB dialect understood by
+ * {@link TspLibReader}.
+ */
+public class InstanceGenerator {
+
+	/**
+	 * How the coordinates of the generated locations are distributed.
+	 */
+	public enum Layout {
+		UNIFORM, CLUSTERED, GRID
+	}
+
+	/** Coordinates are drawn from [0, EXTENT] on both axes */
+	public static final int EXTENT = 10000;
+
+	private final Random random;
+
+	public InstanceGenerator(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * @param numCities     number of locations, ids are 1..numCities
+	 * @param layout        coordinate distribution
+	 * @param density       expected number of precedence constraints per location
+	 * @param slack         factor applied to the reference tour to get the threshold
+	 * @return              the generated instance
+	 */
+	public ETSPPCInstance generate(int numCities, Layout layout, double density, double slack) {
+		Map<Integer, Location> locations = generateLocations(numCities, layout);
+		List<PrecedenceConstraint> constraints = generateConstraints(numCities, density);
+
+		ETSPPCInstance instance = new ETSPPCInstance(locations, constraints, 0);
+		double threshold = Math.ceil(referenceTourCost(instance) * slack * 100) / 100;
+
+		return new ETSPPCInstance(locations, constraints, threshold);
+	}
+
+	private Map<Integer, Location> generateLocations(int numCities, Layout layout) {
+		Map<Integer, Location> locations = new HashMap<Integer, Location>(numCities);
+
+		switch (layout) {
+		case GRID:
+			int side = (int) Math.ceil(Math.sqrt(numCities));
+			int spacing = Math.max(1, EXTENT / side);
+			for (int i = 0; i < numCities; i++) {
+				locations.put(i + 1, new Location(i + 1, (i % side) * spacing, (i / side) * spacing));
+			}
+			break;
+		case CLUSTERED:
+			int clusters = Math.max(1, (int) Math.sqrt(numCities) / 2);
+			double sigma = EXTENT / (4.0 * Math.sqrt(clusters));
+			double[] cx = new double[clusters];
+			double[] cy = new double[clusters];
+			for (int c = 0; c < clusters; c++) {
+				cx[c] = random.nextInt(EXTENT + 1);
+				cy[c] = random.nextInt(EXTENT + 1);
+			}
+			for (int i = 0; i < numCities; i++) {
+				int c = random.nextInt(clusters);
+				locations.put(i + 1, new Location(i + 1, clamp(cx[c] + random.nextGaussian() * sigma),
+						clamp(cy[c] + random.nextGaussian() * sigma)));
+			}
+			break;
+		default:
+			for (int i = 0; i < numCities; i++) {
+				locations.put(i + 1, new Location(i + 1, random.nextInt(EXTENT + 1), random.nextInt(EXTENT + 1)));
+			}
+		}
+		return locations;
+	}
+
+	/**
+	 * The reader only accepts non-negative numbers, so coordinates are rounded
+	 * and kept inside the extent.
+	 */
+	private static double clamp(double v) {
+		return Math.max(0, Math.min(EXTENT, Math.round(v)));
+	}
+
+	/**
+	 * Draws constraints along a random permutation of the locations, so the
+	 * resulting precedence graph is always acyclic.
+	 */
+	private List<PrecedenceConstraint> generateConstraints(int numCities, double density) {
+		int[] order = new int[numCities];
+		for (int i = 0; i < numCities; i++) {
+			order[i] = i + 1;
+		}
+		for (int i = numCities - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = order[i];
+			order[i] = order[j];
+			order[j] = t;
+		}
+
+		long maxPairs = (long) numCities * (numCities - 1) / 2;
+		long count = Math.min(maxPairs, Math.round(density * numCities));
+
+		Set<Long> seen = new HashSet<Long>();
+		List<PrecedenceConstraint> constraints = new ArrayList<PrecedenceConstraint>((int) count);
+		while (constraints.size() < count) {
+			int a = random.nextInt(numCities);
+			int b = random.nextInt(numCities);
+			if (a == b) continue;
+			if (a > b) {
+				int t = a;
+				a = b;
+				b = t;
+			}
+			if (seen.add((long) a * numCities + b)) {
+				constraints.add(new PrecedenceConstraint(order[a], order[b]));
+			}
+		}
+		return constraints;
+	}
+
+	/**
+	 * Precedence-feasible nearest neighbour tour, used as the reference for
+	 * the threshold. Runs in O(n^2 + m) without building a distance matrix.
+	 *
+	 * @param instance      ids must be 1..n
+	 * @return              cost of the closed tour
+	 */
+	public static double referenceTourCost(ETSPPCInstance instance) {
+		int n = instance.getAllLocations().size();
+		Location[] locations = new Location[n];
+		for (Location l : instance.getAllLocations().values()) {
+			locations[l.getCityId() - 1] = l;
+		}
+
+		int[] pending = new int[n];
+		List<List<Integer>> successors = new ArrayList<List<Integer>>(n);
+		for (int i = 0; i < n; i++) {
+			successors.add(new ArrayList<Integer>());
+		}
+		for (PrecedenceConstraint pc : instance.getConstraints()) {
+			successors.get(pc.getFirst() - 1).add(pc.getSecond() - 1);
+			pending[pc.getSecond() - 1]++;
+		}
+
+		boolean[] visited = new boolean[n];
+		int current = -1;
+		double sum = 0.0;
+		int first = -1;
+
+		for (int step = 0; step < n; step++) {
+			int next = -1;
+			double best = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < n; i++) {
+				if (visited[i] || pending[i] > 0) continue;
+				double d = current < 0 ? 0 : locations[current].distanceTo(locations[i]);
+				if (d < best) {
+					best = d;
+					next = i;
+				}
+			}
+			if (next < 0) {
+				throw new IllegalArgumentException("precedence constraints contain a cycle");
+			}
+			visited[next] = true;
+			for (int s : successors.get(next)) {
+				pending[s]--;
+			}
+			if (current < 0) first = next;
+			else sum += best;
+			current = next;
+		}
+
+		if (n > 1) sum += locations[current].distanceTo(locations[first]);
+		return sum;
+	}
+
+	/**
+	 * Writes the instance so that {@link TspLibReader#readInstance()} reads it
+	 * back unchanged.
+	 */
+	public static void write(ETSPPCInstance instance, Writer out) throws IOException {
+		int n = instance.getAllLocations().size();
+		out.write("DIMENSION: " + n + "\n");
+		out.write(String.format(Locale.US, "THRESHOLD: %.2f%n", instance.getThreshold()));
+		out.write("NODE_COORD_SECTION\n");
+		for (int id = 1; id <= n; id++) {
+			Location l = instance.getAllLocations().get(id);
+			out.write(id + " " + (long) l.getX() + " " + (long) l.getY() + "\n");
+		}
+		out.write("PRECEDENCE_SECTION\n");
+		for (PrecedenceConstraint pc : instance.getConstraints()) {
+			out.write(pc.getFirst() + " " + pc.getSecond() + "\n");
+		}
+		out.write("EOF\n");
+	}
+
+	/**
+	 * Usage: <code>InstanceGenerator n layout density slack seed file</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 6) {
+			System.err.println("usage: InstanceGenerator <n> <UNIFORM|CLUSTERED|GRID> <density> <slack> <seed> <file>");
+			System.exit(1);
+		}
+
+		int n = Integer.parseInt(args[0]);
+		Layout layout = Layout.valueOf(args[1].toUpperCase(Locale.US));
+		double density = Double.parseDouble(args[2]);
+		double slack = Double.parseDouble(args[3]);
+		long seed = Long.parseLong(args[4]);
+
+		ETSPPCInstance instance = new InstanceGenerator(seed).generate(n, layout, density, slack);
+
+		Writer out = new BufferedWriter(new FileWriter(args[5]));
+		try {
+			write(instance, out);
+		} finally {
+			out.close();
+		}
+	}
+}
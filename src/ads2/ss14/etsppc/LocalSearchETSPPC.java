@@ -0,0 +1,747 @@
+package ads2.ss14.etsppc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Improves a given tour by chains of 2-opt and Or-opt moves in the style of
+ * Lin-Kernighan. A chain starts at a city, makes the best move that gives it
+ * a new edge to one of its {@link #NEIGHBORS} nearest cities, even if the
+ * tour gets longer, and continues from the city left with the new closing
+ * edge for up to {@link #MAX_DEPTH} moves; it is then undone back to its
+ * shortest tour. Only moves that keep every precedence constraint satisfied
+ * are made. Where the nearest cities give no move, the segments of up to
+ * {@link #MAX_SEGMENT} cities at a city are tried within
+ * {@link #SCAN_WINDOW} positions and next to its {@link #SCAN_NEIGHBORS}
+ * nearest cities. Cities whose chains failed wait until one of their edges
+ * changes, so a pass over an almost optimal tour takes about linear time.
+ *
+ * <p>
+ * {@link #run()} ends in a local optimum or when {@link #stop()} is called,
+ * {@link #proceed()} continues from the current tour. Improvements are
+ * reported at most once per {@link #REPORT_NANOS} and when the search
+ * returns.
+ * </p>
+ */
+public class LocalSearchETSPPC extends AbstractETSPPC {
+
+	private static final int MAX_SEGMENT = 3;
+
+	/** positions on either side of a city tried by {@link #scanSegments(int, int, int)} */
+	private static final int SCAN_WINDOW = 50;
+
+	/** size of the candidate lists */
+	private static final int NEIGHBORS = 8;
+
+	/** nearest cities next to which {@link #scanSegments(int, int, int)} tries a segment */
+	private static final int SCAN_NEIGHBORS = 64;
+
+	/** moves per chain */
+	private static final int MAX_DEPTH = 3;
+
+	/** positions a move may touch while the chain is not shorter than the tour it started from */
+	private static final int MAX_TENTATIVE = 64;
+
+	/** minimum time between two reports while the search runs */
+	private static final long REPORT_NANOS = 10000000L;
+
+	/** a move has to save more than this, so rounding cannot make moves cycle */
+	private static final double EPSILON = 1e-9;
+
+	private static final int REVERSE = 0;
+	private static final int SEGMENT = 1;
+
+	private final Location[] cities;
+	private final int[][] predecessors;
+	private final int[][] successors;
+	/** nearest cities of each city, the nearest first */
+	private final int[][] neighbors;
+	/** the longer lists of {@link #SCAN_NEIGHBORS} nearest cities */
+	private final int[][] scanNeighbors;
+
+	/** city index at each tour position */
+	private final int[] tour;
+	/** tour position of each city index */
+	private final int[] position;
+	private double cost;
+	/** maximum number of positions a segment is moved */
+	private int window = Integer.MAX_VALUE;
+
+	/** cities whose chains have to be tried, a ring buffer, the others have their don't-look bit set */
+	private final int[] queue;
+	private final boolean[] queued;
+	private int queueHead;
+	private int queueSize;
+
+	/* the moves of the current chain: kind, the arguments of the call that undoes it and the added edges */
+	private final int[] chainKind = new int[MAX_DEPTH];
+	private final int[] chainFrom = new int[MAX_DEPTH];
+	private final int[] chainLength = new int[MAX_DEPTH];
+	private final int[] chainTo = new int[MAX_DEPTH];
+	private final int[] chainAdded = new int[MAX_DEPTH * 6];
+
+	/* the best move found by findMove */
+	private double moveDelta;
+	private int moveKind;
+	private int moveFrom;
+	private int moveLength;
+	private int moveTo;
+	private int movePivot;
+	private final int[] moveAdded = new int[6];
+	/** the cities of the segment being moved by {@link #moveSegment(int, int, int)} */
+	private final int[] segment = new int[MAX_SEGMENT];
+
+	/*
+	 * The positions after which the segments that start (head) or end (tail)
+	 * at the pivot may be inserted, by length, Integer.MIN_VALUE if there is
+	 * no such segment.
+	 */
+	private final int[] headForward = new int[MAX_SEGMENT + 1];
+	private final int[] headBackward = new int[MAX_SEGMENT + 1];
+	private final int[] tailForward = new int[MAX_SEGMENT + 1];
+	private final int[] tailBackward = new int[MAX_SEGMENT + 1];
+
+	/* the segments scanned by scanSegments by length: their other end and the gain of removing them */
+	private final int[] headLast = new int[MAX_SEGMENT + 1];
+	private final int[] tailFirst = new int[MAX_SEGMENT + 1];
+	private final double[] headRemoval = new double[MAX_SEGMENT + 1];
+	private final double[] tailRemoval = new double[MAX_SEGMENT + 1];
+
+	private volatile boolean stopped;
+	/** a better tour found elsewhere, taken over before the next chain */
+	private volatile List<Location> offered;
+	private SolutionListener solutionListener;
+	private boolean unreported;
+	private long lastReport;
+
+	/**
+	 * @param instance      the instance
+	 * @param start         a feasible tour of the instance to improve
+	 */
+	public LocalSearchETSPPC(ETSPPCInstance instance, List<Location> start) {
+		int n = start.size();
+		cities = new Location[n];
+		Map<Integer, Integer> index = new HashMap<Integer, Integer>(n * 2);
+		int i = 0;
+		for (Location l : instance.getAllLocations().values()) {
+			cities[i] = l;
+			index.put(l.getCityId(), i++);
+		}
+
+		List<List<Integer>> preds = new ArrayList<List<Integer>>(n);
+		List<List<Integer>> succs = new ArrayList<List<Integer>>(n);
+		for (i = 0; i < n; i++) {
+			preds.add(new ArrayList<Integer>());
+			succs.add(new ArrayList<Integer>());
+		}
+		for (PrecedenceConstraint pc : instance.getConstraints()) {
+			int first = index.get(pc.getFirst());
+			int second = index.get(pc.getSecond());
+			preds.get(second).add(first);
+			succs.get(first).add(second);
+		}
+		predecessors = toArrays(preds);
+		successors = toArrays(succs);
+		scanNeighbors = nearestNeighbors(cities, SCAN_NEIGHBORS);
+		neighbors = new int[n][];
+		for (int c = 0; c < n; c++) {
+			neighbors[c] = Arrays.copyOf(scanNeighbors[c], Math.min(NEIGHBORS, scanNeighbors[c].length));
+		}
+
+		tour = new int[n];
+		position = new int[n];
+		i = 0;
+		for (Location l : start) {
+			tour[i] = index.get(l.getCityId());
+			position[tour[i]] = i++;
+		}
+		cost = SolutionVerifier.objectiveValue(start);
+		setSolution(cost, start);
+
+		queue = new int[n];
+		queued = new boolean[n];
+		enqueueAll();
+	}
+
+	static int[][] toArrays(List<List<Integer>> lists) {
+		int[][] arrays = new int[lists.size()][];
+		for (int i = 0; i < arrays.length; i++) {
+			List<Integer> l = lists.get(i);
+			arrays[i] = new int[l.size()];
+			for (int j = 0; j < arrays[i].length; j++) {
+				arrays[i][j] = l.get(j);
+			}
+		}
+		return arrays;
+	}
+
+	/**
+	 * Finds the <code>k</code> nearest cities of every city with a uniform
+	 * grid of about two cities per cell, searching the rings of cells around
+	 * a city until no closer city can follow.
+	 *
+	 * @return      the nearest cities of each city, the nearest first
+	 */
+	private static int[][] nearestNeighbors(Location[] cities, int k) {
+		int n = cities.length;
+		k = Math.max(0, Math.min(k, n - 1));
+		int[][] neighbors = new int[n][];
+		if (k == 0) {
+			for (int i = 0; i < n; i++) {
+				neighbors[i] = new int[0];
+			}
+			return neighbors;
+		}
+
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (Location l : cities) {
+			minX = Math.min(minX, l.getX());
+			minY = Math.min(minY, l.getY());
+			maxX = Math.max(maxX, l.getX());
+			maxY = Math.max(maxY, l.getY());
+		}
+		int side = Math.max(1, (int) Math.sqrt(n / 2.0));
+		double width = Math.max(maxX - minX, 1.0) / side;
+		double height = Math.max(maxY - minY, 1.0) / side;
+
+		// cities sorted by cell
+		int[] cell = new int[n];
+		int[] start = new int[side * side + 1];
+		for (int i = 0; i < n; i++) {
+			int x = Math.min(side - 1, (int) ((cities[i].getX() - minX) / width));
+			int y = Math.min(side - 1, (int) ((cities[i].getY() - minY) / height));
+			cell[i] = y * side + x;
+			start[cell[i] + 1]++;
+		}
+		for (int c = 0; c < side * side; c++) {
+			start[c + 1] += start[c];
+		}
+		int[] members = new int[n];
+		int[] fill = new int[side * side];
+		for (int i = 0; i < n; i++) {
+			members[start[cell[i]] + fill[cell[i]]++] = i;
+		}
+
+		int[] best = new int[k];
+		double[] bestDistance = new double[k];
+		for (int i = 0; i < n; i++) {
+			int cx = cell[i] % side;
+			int cy = cell[i] / side;
+			int count = 0;
+			for (int ring = 0; ring <= side; ring++) {
+				// every city in a farther ring is at least this far away
+				if (count == k && bestDistance[k - 1] <= (ring - 1) * Math.min(width, height)) break;
+
+				for (int y = cy - ring; y <= cy + ring; y++) {
+					if (y < 0 || y >= side) continue;
+					// the first and last row of the ring are full, the others only have their ends
+					int step = y == cy - ring || y == cy + ring ? 1 : 2 * ring;
+					for (int x = cx - ring; x <= cx + ring; x += step) {
+						if (x < 0 || x >= side) continue;
+						int c = y * side + x;
+						for (int m = start[c]; m < start[c + 1]; m++) {
+							int j = members[m];
+							if (j == i) continue;
+							double d = cities[i].distanceTo(cities[j]);
+							if (count == k && d >= bestDistance[k - 1]) continue;
+
+							int p = count < k ? count++ : k - 1;
+							while (p > 0 && bestDistance[p - 1] > d) {
+								best[p] = best[p - 1];
+								bestDistance[p] = bestDistance[p - 1];
+								p--;
+							}
+							best[p] = j;
+							bestDistance[p] = d;
+						}
+					}
+				}
+			}
+			neighbors[i] = new int[count];
+			System.arraycopy(best, 0, neighbors[i], 0, count);
+		}
+		return neighbors;
+	}
+
+	@Override
+	public void run() {
+		while (!stopped) {
+			if (offered != null && adoptOffered()) enqueueAll();
+			if (queueSize == 0) break;
+
+			int city = queue[queueHead];
+			queueHead = (queueHead + 1) % queue.length;
+			queueSize--;
+			queued[city] = false;
+
+			if (improveFrom(city)) {
+				unreported = true;
+				if (System.nanoTime() - lastReport >= REPORT_NANOS) report();
+			}
+		}
+		if (unreported) report();
+	}
+
+	/**
+	 * Continues a search that was ended by {@link #stop()}, which must have
+	 * been cleared by {@link #clearStop()}.
+	 *
+	 * @return      true if the tour is a local optimum
+	 */
+	boolean proceed() {
+		run();
+		return !stopped;
+	}
+
+	/**
+	 * Asks a running search to return as soon as possible. May be called from
+	 * any thread.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Lets the next {@link #proceed()} run. Only the caller that decides
+	 * when to stop may call this, so that no stop gets lost.
+	 */
+	void clearStop() {
+		stopped = false;
+	}
+
+	/**
+	 * Continues from <code>tour</code> if it is better than the current tour.
+	 * May be called from any thread.
+	 *
+	 * @param tour      a feasible tour of the instance
+	 */
+	public void offer(List<Location> tour) {
+		offered = tour;
+	}
+
+	/**
+	 * @param window        maximum number of positions a segment is moved, must
+	 *                      be set before the search runs
+	 */
+	public void setWindow(int window) {
+		this.window = Math.max(1, window);
+	}
+
+	/**
+	 * @param listener      notified on the search thread whenever the tour improves
+	 */
+	public void setSolutionListener(SolutionListener listener) {
+		solutionListener = listener;
+	}
+
+	/**
+	 * @return      true if the offered tour replaced the current one
+	 */
+	private boolean adoptOffered() {
+		List<Location> candidate = offered;
+		offered = null;
+		if (candidate == null || candidate.size() != tour.length) return false;
+
+		double candidateCost = SolutionVerifier.objectiveValue(candidate);
+		if (candidateCost >= cost) return false;
+
+		Map<Integer, Integer> index = new HashMap<Integer, Integer>(tour.length * 2);
+		for (int i = 0; i < cities.length; i++) {
+			index.put(cities[i].getCityId(), i);
+		}
+		int i = 0;
+		for (Location l : candidate) {
+			tour[i] = index.get(l.getCityId());
+			position[tour[i]] = i++;
+		}
+		cost = candidateCost;
+		return true;
+	}
+
+	private void enqueueAll() {
+		for (int city : tour) {
+			enqueue(city);
+		}
+	}
+
+	/**
+	 * Clears the don't-look bit of a city.
+	 */
+	private void enqueue(int city) {
+		if (queued[city]) return;
+		queued[city] = true;
+		queue[(queueHead + queueSize) % queue.length] = city;
+		queueSize++;
+	}
+
+	/**
+	 * Runs a chain of moves from <code>city</code> and keeps its shortest
+	 * tour. The cities at the ends of the new edges are queued again.
+	 *
+	 * @return      true if the tour became shorter
+	 */
+	private boolean improveFrom(int city) {
+		if (tour.length < 5) return false;
+
+		int depth = 0;
+		int bestDepth = 0;
+		double total = 0.0;
+		double best = 0.0;
+		int pivot = city;
+		while (depth < MAX_DEPTH && findMove(pivot, total, depth)) {
+			chainKind[depth] = moveKind;
+			System.arraycopy(moveAdded, 0, chainAdded, depth * 6, 6);
+			if (moveKind == REVERSE) {
+				reverse(moveFrom, moveTo);
+				chainFrom[depth] = moveFrom;
+				chainTo[depth] = moveTo;
+			} else {
+				// the segment is moved back to where it was, right after the city before it
+				chainFrom[depth] = moveSegment(moveFrom, moveLength, moveTo);
+				chainLength[depth] = moveLength;
+				chainTo[depth] = moveTo >= moveFrom ? moveFrom - 1 : moveFrom + moveLength - 1;
+			}
+			depth++;
+
+			total += moveDelta;
+			if (total < best - EPSILON) {
+				best = total;
+				bestDepth = depth;
+			}
+			pivot = movePivot;
+		}
+
+		while (depth > bestDepth) {
+			depth--;
+			if (chainKind[depth] == REVERSE) {
+				reverse(chainFrom[depth], chainTo[depth]);
+			} else {
+				moveSegment(chainFrom[depth], chainLength[depth], chainTo[depth]);
+			}
+		}
+		if (bestDepth == 0) return false;
+
+		cost += best;
+		for (int i = 0; i < bestDepth * 6; i++) {
+			enqueue(chainAdded[i]);
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the feasible move that gives <code>pivot</code> a new edge to one
+	 * of its nearest cities and changes the tour length the least. The new
+	 * edge has to be shorter than the removed edge of the pivot plus the
+	 * length the chain has saved so far, and the move must not remove an edge
+	 * the chain added.
+	 *
+	 * @param total     change of the tour length by the chain so far
+	 * @param depth     number of moves in the chain so far
+	 * @return          false if there is no such move
+	 */
+	private boolean findMove(int pivot, double total, int depth) {
+		int n = tour.length;
+		int i = position[pivot];
+		int pred = tour[(i + n - 1) % n];
+		int succ = tour[(i + 1) % n];
+		double succGain = dist(pivot, succ) - total;
+		double predGain = dist(pred, pivot) - total;
+
+		for (int length = 1; length <= MAX_SEGMENT; length++) {
+			boolean head = i + length <= n && length < n - 1;
+			boolean tail = i - length + 1 >= 0 && length < n - 1;
+			headForward[length] = head ? forwardLimit(i, length) : Integer.MIN_VALUE;
+			headBackward[length] = head ? backwardLimit(i, length) : Integer.MIN_VALUE;
+			tailForward[length] = tail ? forwardLimit(i - length + 1, length) : Integer.MIN_VALUE;
+			tailBackward[length] = tail ? backwardLimit(i - length + 1, length) : Integer.MIN_VALUE;
+		}
+
+		moveDelta = Double.POSITIVE_INFINITY;
+		boolean blocked = false;
+		for (int t : neighbors[pivot]) {
+			int j = position[t];
+			if (headForward[1] != Integer.MIN_VALUE && (j < headBackward[1] || j > headForward[1])) blocked = true;
+			double d = dist(pivot, t);
+			if (d >= succGain && d >= predGain) break;
+			int tSucc = tour[(j + 1) % n];
+			int tPred = tour[(j + n - 1) % n];
+
+			if (d < succGain && t != succ && tSucc != pivot) {
+				// remove (pivot, succ) and (t, tSucc), add (pivot, t) and (succ, tSucc)
+				double delta = d + dist(succ, tSucc) - dist(pivot, succ) - dist(t, tSucc);
+				if (i < j) {
+					tryReverse(i + 1, j, delta, total, depth, pivot, succ, t, tSucc, succ);
+				} else {
+					tryReverse(j + 1, i, delta, total, depth, t, tSucc, pivot, succ, succ);
+				}
+			}
+			if (d < predGain && t != pred && tPred != pivot) {
+				// remove (pred, pivot) and (tPred, t), add (pivot, t) and (pred, tPred)
+				double delta = d + dist(pred, tPred) - dist(pred, pivot) - dist(tPred, t);
+				if (i < j) {
+					tryReverse(i, j - 1, delta, total, depth, pred, pivot, tPred, t, pred);
+				} else {
+					tryReverse(j, i - 1, delta, total, depth, tPred, t, pred, pivot, pred);
+				}
+			}
+
+			for (int length = 1; length <= MAX_SEGMENT; length++) {
+				// the segment starts at the pivot and follows t, the chain goes on where it was cut out
+				if (d < predGain && headForward[length] != Integer.MIN_VALUE) {
+					trySegment(i, length, j, total, depth, pred, headForward[length], headBackward[length]);
+				}
+				// the segment ends at the pivot and precedes t
+				if (d < succGain && tailForward[length] != Integer.MIN_VALUE) {
+					trySegment(i - length + 1, length, j - 1, total, depth, succ, tailForward[length], tailBackward[length]);
+				}
+			}
+		}
+		if (depth == 0 && moveDelta >= -EPSILON && (blocked || neighbors[pivot].length > 0
+				&& dist(pred, pivot) + dist(pivot, succ) - dist(pred, succ) > dist(pivot, neighbors[pivot][0]))) {
+			scanSegments(i, pred, succ);
+		}
+		return moveDelta < Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Considers inserting each segment that starts or ends at
+	 * <code>tour[i]</code> at the positions within its limits that are at
+	 * most {@link #SCAN_WINDOW} away or next to one of its
+	 * {@link #SCAN_NEIGHBORS} nearest cities.
+	 */
+	private void scanSegments(int i, int pred, int succ) {
+		int n = tour.length;
+		int pivot = tour[i];
+		int from = Integer.MAX_VALUE;
+		int to = Integer.MIN_VALUE;
+		for (int length = 1; length <= MAX_SEGMENT; length++) {
+			if (headForward[length] != Integer.MIN_VALUE) {
+				headLast[length] = tour[i + length - 1];
+				int next = tour[(i + length) % n];
+				headRemoval[length] = dist(pred, pivot) + dist(headLast[length], next) - dist(pred, next);
+				from = Math.min(from, headBackward[length]);
+				to = Math.max(to, headForward[length]);
+			}
+			if (tailForward[length] != Integer.MIN_VALUE) {
+				tailFirst[length] = tour[i - length + 1];
+				int prev = tour[(i - length + n) % n];
+				tailRemoval[length] = dist(prev, tailFirst[length]) + dist(pivot, succ) - dist(prev, succ);
+				from = Math.min(from, tailBackward[length]);
+				to = Math.max(to, tailForward[length]);
+			}
+		}
+
+		scanPositions(i, pred, succ, Math.max(from, i - SCAN_WINDOW), Math.min(to, i + SCAN_WINDOW));
+		for (int c : scanNeighbors[pivot]) {
+			int p = position[c];
+			if (p < i - SCAN_WINDOW || p > i + SCAN_WINDOW) {
+				// before and after c
+				scanPositions(i, pred, succ, Math.max(from, p - 1), Math.min(to, p));
+			}
+		}
+	}
+
+	/**
+	 * The part of {@link #scanSegments(int, int, int)} that tries the
+	 * insertion positions <code>from..to</code>.
+	 */
+	private void scanPositions(int i, int pred, int succ, int from, int to) {
+		int n = tour.length;
+		int pivot = tour[i];
+		for (int j = from; j <= to; j++) {
+			int a = j < 0 ? tour[n - 1] : tour[j];
+			int b = tour[(j + 1) % n];
+			double ab = dist(a, b);
+			double aPivot = dist(a, pivot);
+			double pivotB = dist(pivot, b);
+			for (int length = 1; length <= MAX_SEGMENT; length++) {
+				if (headForward[length] != Integer.MIN_VALUE && j >= headBackward[length] && j <= headForward[length]
+						&& aPivot + dist(headLast[length], b) - ab - headRemoval[length] < moveDelta) {
+					trySegment(i, length, j, 0.0, 0, pred, headForward[length], headBackward[length]);
+				}
+				if (tailForward[length] != Integer.MIN_VALUE && j >= tailBackward[length] && j <= tailForward[length]
+						&& dist(a, tailFirst[length]) + pivotB - ab - tailRemoval[length] < moveDelta) {
+					trySegment(i - length + 1, length, j, 0.0, 0, succ, tailForward[length], tailBackward[length]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return      the last position after which <code>tour[from..from+length)</code>
+	 *              may be inserted, the one before its first successor
+	 */
+	private int forwardLimit(int from, int length) {
+		int limit = (int) Math.min(tour.length - 1, (long) from + length - 1 + window);
+		for (int k = from; k < from + length; k++) {
+			for (int s : successors[tour[k]]) {
+				if (position[s] >= from + length) limit = Math.min(limit, position[s] - 1);
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * @return      the first position after which <code>tour[from..from+length)</code>
+	 *              may be inserted, the one of its last predecessor
+	 */
+	private int backwardLimit(int from, int length) {
+		int backwardLimit = (int) Math.max(-1, (long) from - 1 - window);
+		for (int k = from; k < from + length; k++) {
+			for (int p : predecessors[tour[k]]) {
+				if (position[p] < from) backwardLimit = Math.max(backwardLimit, position[p]);
+			}
+		}
+		return backwardLimit;
+	}
+
+	/**
+	 * Considers reversing <code>tour[p..q]</code>, which removes the edges
+	 * (a, b) and (c, d).
+	 */
+	private void tryReverse(int p, int q, double delta, double total, int depth, int a, int b, int c, int d, int pivot) {
+		if (delta >= moveDelta || p >= q || (p == 0 && q == tour.length - 1)) return;
+		int extent = q - p + 1;
+		if (extent > window || total + delta >= -EPSILON && extent > MAX_TENTATIVE) return;
+		if (depth > 0 && (added(a, b, depth) || added(c, d, depth))) return;
+
+		// a constraint inside the reversed part would be turned around
+		for (int k = p; k <= q; k++) {
+			for (int s : successors[tour[k]]) {
+				if (position[s] >= p && position[s] <= q) return;
+			}
+		}
+
+		moveDelta = delta;
+		moveKind = REVERSE;
+		moveFrom = p;
+		moveTo = q;
+		movePivot = pivot;
+		moveAdded[0] = a;
+		moveAdded[1] = c;
+		moveAdded[2] = b;
+		moveAdded[3] = d;
+		moveAdded[4] = a;
+		moveAdded[5] = c;
+	}
+
+	/**
+	 * Considers inserting <code>tour[from..from+length)</code> after position
+	 * <code>j</code>, where <code>-1</code> is the front of the tour.
+	 */
+	private void trySegment(int from, int length, int j, double total, int depth, int pivot, int forwardLimit, int backwardLimit) {
+		int n = tour.length;
+		if (j >= from - 1 && j < from + length) return;
+		if (j > forwardLimit || j < backwardLimit) return;
+		if ((j == n - 1 && from == 0) || (j == -1 && from + length == n)) return; // same cyclic tour
+
+		int first = tour[from];
+		int last = tour[from + length - 1];
+		int prev = tour[(from + n - 1) % n];
+		int next = tour[(from + length) % n];
+		int a = j < 0 ? tour[n - 1] : tour[j];
+		int b = tour[(j + 1) % n];
+		double delta = dist(a, first) + dist(last, b) - dist(a, b) - (dist(prev, first) + dist(last, next) - dist(prev, next));
+		if (delta >= moveDelta) return;
+
+		int extent = Math.abs(j - from) + length;
+		if (total + delta >= -EPSILON && extent > MAX_TENTATIVE) return;
+		if (depth > 0 && (added(prev, first, depth) || added(last, next, depth) || added(a, b, depth))) return;
+
+		moveDelta = delta;
+		moveKind = SEGMENT;
+		moveFrom = from;
+		moveLength = length;
+		moveTo = j;
+		movePivot = pivot;
+		moveAdded[0] = prev;
+		moveAdded[1] = next;
+		moveAdded[2] = a;
+		moveAdded[3] = first;
+		moveAdded[4] = last;
+		moveAdded[5] = b;
+	}
+
+	/**
+	 * @return      true if one of the first <code>depth</code> moves of the
+	 *              chain added the edge (a, b)
+	 */
+	private boolean added(int a, int b, int depth) {
+		for (int i = 0; i < depth * 6; i += 2) {
+			int x = chainAdded[i];
+			int y = chainAdded[i + 1];
+			if (x == a && y == b || x == b && y == a) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reverses <code>tour[p..q]</code>.
+	 */
+	private void reverse(int p, int q) {
+		while (p < q) {
+			int city = tour[p];
+			tour[p] = tour[q];
+			tour[q] = city;
+			position[tour[p]] = p;
+			position[tour[q]] = q;
+			p++;
+			q--;
+		}
+		if (p == q) position[tour[p]] = p;
+	}
+
+	/**
+	 * Moves the segment <code>tour[i..i+length)</code> after position
+	 * <code>j</code>, which lies outside of it.
+	 *
+	 * @return      the new position of the segment
+	 */
+	private int moveSegment(int i, int length, int j) {
+		System.arraycopy(tour, i, segment, 0, length);
+		if (j >= i + length) {
+			// the cities between the segment and the insertion point move back
+			System.arraycopy(tour, i + length, tour, i, j - i - length + 1);
+			System.arraycopy(segment, 0, tour, j - length + 1, length);
+			renumber(i, j);
+			return j - length + 1;
+		}
+		// the cities between the insertion point and the segment move forward
+		System.arraycopy(tour, j + 1, tour, j + 1 + length, i - j - 1);
+		System.arraycopy(segment, 0, tour, j + 1, length);
+		renumber(j + 1, i + length - 1);
+		return j + 1;
+	}
+
+	private void renumber(int from, int to) {
+		for (int k = from; k <= to; k++) {
+			position[tour[k]] = k;
+		}
+	}
+
+	private double dist(int a, int b) {
+		return cities[a].distanceTo(cities[b]);
+	}
+
+	/**
+	 * Recomputes the cost exactly like the checker and reports the tour.
+	 */
+	private void report() {
+		List<Location> solution = new ArrayList<Location>(tour.length);
+		for (int c : tour) {
+			solution.add(cities[c]);
+		}
+		cost = SolutionVerifier.objectiveValue(solution);
+		unreported = false;
+		lastReport = System.nanoTime();
+		double previous = getBestSolution().getUpperBound();
+		if (setSolution(cost, solution)) {
+			SolverEvents.incumbent(this, cost, previous, solution.size());
+			if (solutionListener != null) solutionListener.improved(cost, solution);
+		}
+	}
+}
@@ -3,7 +3,6 @@ package ads2.ss14.etsppc;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
@@ -41,6 +40,15 @@ public class Main {
 
 	/** Debug flag f&uuml;r zus&auml;tzliche Debug Ausgaben */
 	private static boolean debug = false;
+
+	/** Portfolio flag, l&auml;sst {@link PortfolioETSPPC} statt {@link ETSPPC} laufen */
+	private static boolean portfolio = false;
+
+	/** Wie {@link ETSPPC} Distanzen vergleicht, siehe {@link ETSPPC.DistanceMode} */
+	private static ETSPPC.DistanceMode distances = ETSPPC.DistanceMode.EXACT;
+
+	/** In welcher Reihenfolge {@link ETSPPC} verzweigt, siehe {@link ETSPPC.Branching} */
+	private static ETSPPC.Branching branching = ETSPPC.Branching.NEAREST_FIRST;
 	
 	/** Der Schwellwert f&uuml;r die gelbe Schranke */
 	private static Integer threshold;
@@ -57,7 +65,8 @@ public class Main {
 	 * 
 	 * <p>
 	 * Der erste String in <code>args</code>, der <em>nicht</em> mit <code>-d
-	 * </code>, <code>-t</code>, oder <code>-s</code> beginnt, wird als der Pfad
+	 * </code>, <code>-t</code>, <code>-s</code>, <code>-p</code>, <code>-f</code>, <code>-r</code>,
+	 * <code>-c</code>, <code>-g</code> oder <code>-b</code> beginnt, wird als der Pfad
 	 * zur Datei interpretiert, aus der die Testinstanz auszulesen ist. Alle
 	 * nachfolgenden Parameter werden ignoriert. Wird kein Dateiname angegeben,
 	 * wird die Testinstanz &uuml;ber {@link System#in} eingelesen.
@@ -69,8 +78,19 @@ public class Main {
 	 *            {@link #printDebug(String)}, <code>-t</code> gibt
 	 *            zus&auml;tzlich Dateiname und Laufzeit aus und <code>-s</code>
 	 *            verhindert, dass Ihr Algorithmus nach 30 Sekunden beendet
-	 *            wird. Der erste andere String wird als Dateiname
-	 *            interpretiert.
+	 *            wird. <code>-p</code> l&auml;sst mehrere Strategien
+	 *            gleichzeitig laufen, siehe {@link PortfolioETSPPC}.
+	 *            <code>-f</code> l&auml;sst die Suche mit
+	 *            Festkomma-Distanzen rechnen, <code>-r</code> mit auf ganze
+	 *            Zahlen gerundeten Distanzen wie TSPLIB, die ausgegebenen
+	 *            Kosten bleiben exakt. <code>-c</code>, <code>-g</code> und
+	 *            <code>-b</code> w&auml;hlen, in welcher Reihenfolge
+	 *            {@link ETSPPC} verzweigt: zuerst die Stadt mit den meisten
+	 *            Nachfolgern, die Stadt mit dem gr&ouml;&szlig;ten Bedauern
+	 *            bzw. die Stadt mit der billigsten Vervollst&auml;ndigung,
+	 *            siehe {@link ETSPPC.Branching}. Ohne diese Optionen wird
+	 *            zuerst die n&auml;chste Stadt versucht. Der erste andere
+	 *            String wird als Dateiname interpretiert.
 	 */
 	public static void main(String[] args) {
 		processArgs(args);
@@ -123,7 +143,14 @@ public class Main {
 
 		chopFileName();
 
-		AbstractETSPPC bnbRunner = new ETSPPC(instance);
+		AbstractETSPPC bnbRunner;
+		if (portfolio) {
+			bnbRunner = new PortfolioETSPPC(instance);
+		} else {
+			ETSPPC search = new ETSPPC(instance, distances);
+			search.setBranching(branching);
+			bnbRunner = search;
+		}
 		Thread thread = new Thread(bnbRunner, "ETSPPC Thread");
 		thread.start();
 
@@ -151,33 +178,21 @@ public class Main {
 
 		double upper_bound = sol.getUpperBound();
 
+		SolutionVerifier.Result check = new SolutionVerifier(originalInstance).verify(solution, upper_bound);
+
 		//check tour
-		boolean fullTour = solution.containsAll(originalInstance.getAllLocations().values()) && originalInstance.getAllLocations().values().containsAll(solution);
-		
-		if(!fullTour) {
+		if(check.isTourIncomplete()) {
 			bailOut("Die Tour ist nicht vollstaendig oder enthaelt unbekannte Locations!");
 		}
 		
-		List<Integer> solutionCityIds = new ArrayList<Integer>(solution.size());
-		for(Location c : solution) {
-			solutionCityIds.add(c.getCityId());
-		}
-		
-		boolean constraintsFullfilled = true;
-		for(PrecedenceConstraint pc : originalInstance.getConstraints()) {
-			if(solutionCityIds.indexOf(pc.getFirst()) >= solutionCityIds.indexOf(pc.getSecond())) {
-				constraintsFullfilled = false;
-				printDebug("Das Precedence Constraint '" + String.valueOf(pc.getFirst()) + " vor " + String.valueOf(pc.getSecond()) + "' wurde nicht erfuellt!" );
+		if(check.isConstraintViolated()) {
+			for(String violation : check.getViolations()) {
+				printDebug(violation);
 			}
-		}
-		
-		if(!constraintsFullfilled) {
 			System.exit(1);
 		}
-		
-		double sumDistance = calcObjectiveValue(solution);
 
-		if (sumDistance != upper_bound) {
+		if (check.isObjectiveMismatch()) {
 			bailOut("Die obere Schanke muss immer gleich der aktuell besten Loesung sein!");
 		}
 
@@ -203,20 +218,7 @@ public class Main {
 	}
 
 	public static double calcObjectiveValue(List<Location> solution) {
-		double sumDistance = 0;
-		Location last = null;
-		for (Location c : solution) {
-			if(last != null) {
-				sumDistance += last.distanceTo(c);
-			}	
-			last = c;
-		}
-		
-		if(last != null && solution.get(0) != last) {
-			sumDistance += last.distanceTo(solution.get(0));
-		}
-		
-		return sumDistance;
+		return SolutionVerifier.objectiveValue(solution);
 	}
 
 	/**
@@ -256,6 +258,18 @@ public class Main {
 				test = true;
 			} else if (a.equals("-d")) {
 				debug = test = true;
+			} else if (a.equals("-p")) {
+				portfolio = true;
+			} else if (a.equals("-f")) {
+				distances = ETSPPC.DistanceMode.FIXED_POINT;
+			} else if (a.equals("-r")) {
+				distances = ETSPPC.DistanceMode.ROUNDED;
+			} else if (a.equals("-c")) {
+				branching = ETSPPC.Branching.MOST_CONSTRAINED;
+			} else if (a.equals("-g")) {
+				branching = ETSPPC.Branching.REGRET;
+			} else if (a.equals("-b")) {
+				branching = ETSPPC.Branching.BOUND_GUIDED;
 			} else {
 				fileName = a;
 
@@ -0,0 +1,387 @@
+package ads2.ss14.etsppc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs several solvers on the same instance and keeps the best tour any of
+ * them finds. Every improvement becomes the incumbent of this solver and is
+ * passed on to the other strategies, the branch-and-bound searches prune with
+ * it and the local search continues from it.
+ *
+ * <p>
+ * At most <code>slots</code> strategies run at the same time. Time is handed
+ * out in slices of {@link #SLICE_MILLIS}: after each slice the strategies are
+ * ranked by their recent share of the improvements, with a bonus that grows
+ * while a strategy waits, and the best ones run during the next slice. A
+ * strategy that is not selected any more is stopped and continued later from
+ * where it stopped. When an exact strategy finishes, its tour is optimal and
+ * the run ends.
+ * </p>
+ */
+public class PortfolioETSPPC extends AbstractETSPPC {
+
+	private static final long SLICE_MILLIS = 100;
+
+	/** weight of the previous score when the score of a strategy is updated */
+	private static final double DECAY = 0.8;
+
+	/** score a waiting strategy gains per slice, so that every strategy runs now and then */
+	private static final double PATIENCE = 0.002;
+
+	/** subproblems of the branch-and-bound that explores cheap prefixes first */
+	private static final int SPLIT_FRAMES = 64;
+
+	/** width of the first beam, every further beam is twice as wide */
+	private static final int BEAM_WIDTH = 16;
+
+	private final int slots;
+	private final List<Strategy> strategies = new ArrayList<Strategy>();
+	private volatile boolean stopped;
+
+	/**
+	 * A solver of the portfolio that can be stopped and continued.
+	 */
+	private abstract class Strategy implements Runnable, SolutionListener {
+		final String name;
+		final boolean exact;
+
+		volatile boolean selected;
+		volatile boolean running;
+		volatile boolean finished;
+		volatile boolean failed;
+
+		/* guarded by the portfolio */
+		double score;
+		double credit;
+		int idle;
+
+		Strategy(String name, boolean exact) {
+			this.name = name;
+			this.exact = exact;
+		}
+
+		/**
+		 * Runs until the strategy is done or {@link #pause()} is called.
+		 *
+		 * @return      true if the strategy is done
+		 */
+		abstract boolean proceed();
+
+		/** Makes {@link #proceed()} return soon, may be called from any thread. */
+		abstract void pause();
+
+		/** Undoes {@link #pause()}, called by the portfolio only while it holds the strategy's lock. */
+		abstract void resume();
+
+		/** Passes a better tour found by another strategy, may be called from any thread. */
+		abstract void share(double cost, List<Location> tour);
+
+		@Override
+		public void improved(double cost, List<Location> tour) {
+			PortfolioETSPPC.this.improved(this, cost, tour);
+		}
+
+		/*
+		 * Pausing and resuming happen under the strategy's lock and a stopped
+		 * portfolio resumes nothing, so a pause is never lost between the
+		 * decision to run and the start of proceed().
+		 */
+
+		synchronized void select() {
+			if (stopped) return;
+			selected = true;
+			resume();
+			notifyAll();
+		}
+
+		synchronized void deselect() {
+			selected = false;
+			pause();
+		}
+
+		/** Lets a finished strategy run again, e.g. because it was given a new tour. */
+		synchronized void revive() {
+			finished = false;
+			notifyAll();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!stopped) {
+					synchronized (this) {
+						while ((!selected || finished) && !stopped) {
+							wait();
+						}
+					}
+					if (stopped) return;
+
+					running = true;
+					finished = proceed();
+					running = false;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				Main.printDebug("strategy " + name + " failed: " + e);
+				failed = true;
+			} finally {
+				running = false;
+			}
+		}
+	}
+
+	public PortfolioETSPPC(ETSPPCInstance instance) {
+		this(instance, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param instance      the instance to solve
+	 * @param slots         number of strategies that may run at the same time
+	 */
+	public PortfolioETSPPC(ETSPPCInstance instance, int slots) {
+		this.slots = Math.max(1, slots);
+
+		if (instance.getAllLocations().size() <= HeldKarpETSPPC.MAX_CITIES) {
+			final HeldKarpETSPPC dp = new HeldKarpETSPPC(instance);
+			dp.setSolutionListener(add(new Strategy("dynamic programming", true) {
+				@Override
+				boolean proceed() {
+					return dp.proceed();
+				}
+
+				@Override
+				void pause() {
+					dp.stop();
+				}
+
+				@Override
+				void resume() {
+					dp.clearStop();
+				}
+
+				@Override
+				void share(double cost, List<Location> tour) {
+					// exact anyway
+				}
+			}));
+		}
+
+		final ETSPPC nearestFirst = new ETSPPC(instance);
+		addSearch("branch and bound, nearest first", nearestFirst);
+		AbstractETSPPC.BnBSolution initial = nearestFirst.getBestSolution();
+		setSolution(initial.getUpperBound(), initial.getBestSolution());
+
+		final LocalSearchETSPPC local = new LocalSearchETSPPC(instance, initial.getBestSolution());
+		local.setSolutionListener(add(new Strategy("local search", false) {
+			@Override
+			boolean proceed() {
+				return local.proceed();
+			}
+
+			@Override
+			void pause() {
+				local.stop();
+			}
+
+			@Override
+			void resume() {
+				local.clearStop();
+			}
+
+			@Override
+			void share(double cost, List<Location> tour) {
+				local.offer(tour);
+				revive();
+			}
+		}));
+
+		// a different child order, so that the two searches do not visit the same tours first
+		ETSPPC cheapPrefixes = new ETSPPC(instance, nearestFirst.getDistanceMatrix());
+		cheapPrefixes.setBranching(ETSPPC.Branching.REGRET);
+		cheapPrefixes.schedule(cheapPrefixes.split(SPLIT_FRAMES));
+		addSearch("branch and bound on cheap prefixes, regret order", cheapPrefixes);
+
+		// the strategies already run side by side, so the beam expands on its own thread only
+		final BeamSearchETSPPC beam = new BeamSearchETSPPC(instance, BEAM_WIDTH, 1);
+		beam.updateBound(initial.getUpperBound());
+		beam.setSolutionListener(add(new Strategy("beam search", false) {
+			@Override
+			boolean proceed() {
+				return beam.proceed();
+			}
+
+			@Override
+			void pause() {
+				beam.stop();
+			}
+
+			@Override
+			void resume() {
+				beam.clearStop();
+			}
+
+			@Override
+			void share(double cost, List<Location> tour) {
+				beam.updateBound(cost);
+			}
+		}));
+	}
+
+	private Strategy add(Strategy strategy) {
+		strategies.add(strategy);
+		return strategy;
+	}
+
+	private void addSearch(String name, final ETSPPC solver) {
+		solver.setSolutionListener(add(new Strategy(name, false) {
+			@Override
+			boolean proceed() {
+				return solver.proceed();
+			}
+
+			@Override
+			void pause() {
+				solver.stop();
+			}
+
+			@Override
+			void resume() {
+				solver.clearStop();
+			}
+
+			@Override
+			void share(double cost, List<Location> tour) {
+				solver.updateBound(cost);
+			}
+		}));
+	}
+
+	@Override
+	public void run() {
+		List<Thread> threads = new ArrayList<Thread>(strategies.size());
+		for (Strategy s : strategies) {
+			Thread t = new Thread(s, "ETSPPC Portfolio " + s.name);
+			t.setDaemon(true);
+			t.start();
+			threads.add(t);
+		}
+
+		try {
+			while (!stopped && schedule()) {
+				Thread.sleep(SLICE_MILLIS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// also reached when the thread is stopped from outside
+			stop();
+		}
+
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Ends all strategies, may be called from any thread.
+	 */
+	public void stop() {
+		stopped = true;
+		for (Strategy s : strategies) {
+			synchronized (s) {
+				s.pause();
+				s.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Selects the strategies for the next slice.
+	 *
+	 * @return      false if there is nothing left to run
+	 */
+	private boolean schedule() {
+		List<Strategy> active = new ArrayList<Strategy>(strategies.size());
+		synchronized (this) {
+			for (Strategy s : strategies) {
+				if (s.finished && s.exact) return false;
+				if (s.finished || s.failed) continue;
+
+				s.score = DECAY * s.score + s.credit;
+				s.credit = 0.0;
+				active.add(s);
+			}
+		}
+		if (active.isEmpty()) return false;
+
+		Collections.sort(active, new Comparator<Strategy>() {
+			@Override
+			public int compare(Strategy a, Strategy b) {
+				return Double.compare(b.score + PATIENCE * b.idle, a.score + PATIENCE * a.idle);
+			}
+		});
+
+		for (int i = 0; i < active.size(); i++) {
+			Strategy s = active.get(i);
+			if (i < slots) {
+				s.idle = 0;
+				s.select();
+			} else {
+				s.idle++;
+				if (s.selected || s.running) s.deselect();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Installs a tour reported by a strategy and credits it with the relative
+	 * improvement.
+	 */
+	private synchronized void improved(Strategy source, double cost, List<Location> tour) {
+		double previous = getBestSolution().getUpperBound();
+		if (!setSolution(cost, tour)) return;
+		SolverEvents.incumbent(this, cost, previous, tour.size());
+
+		source.credit += (previous - cost) / previous;
+		Main.printDebug(source.name + ": " + cost);
+		for (Strategy s : strategies) {
+			if (s != source) s.share(cost, tour);
+		}
+	}
+
+	/**
+	 * Usage: <code>PortfolioETSPPC instance [seconds] [slots]</code>
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("usage: PortfolioETSPPC <instance> [seconds] [slots]");
+			System.exit(1);
+		}
+
+		ETSPPCInstance instance = new TspLibReader(args[0]).readInstance();
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 30;
+		int slots = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		PortfolioETSPPC solver = new PortfolioETSPPC(new ETSPPCInstance(instance), slots);
+		Thread thread = new Thread(solver, "ETSPPC Portfolio");
+		thread.start();
+		thread.join(seconds * 1000);
+		solver.stop();
+		thread.join();
+
+		AbstractETSPPC.BnBSolution sol = solver.getBestSolution();
+		SolutionVerifier.Result check = new SolutionVerifier(instance).verify(sol.getBestSolution(), sol.getUpperBound());
+		System.out.println(sol.getUpperBound() + (check.isValid() ? "" : " INVALID " + check.getViolations()));
+	}
+}
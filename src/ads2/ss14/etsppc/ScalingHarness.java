@@ -0,0 +1,117 @@
+package ads2.ss14.etsppc;
+
+import java.util.Locale;
+
+/**
+ * Runs {@link ETSPPC} on generated instances of increasing size and prints
+ * one CSV line per run with time, peak heap usage and solution quality.
+ * Every reported tour is checked with {@link SolutionVerifier}. From
+ * {@link DecompositionETSPPC#MIN_CITIES} cities on, where the distance matrix
+ * no longer fits, {@link DecompositionETSPPC} is run instead.
+ *
+ * <p>
+ * Usage: <code>ScalingHarness [layout] [density] [timeoutMillis] [seed] [n ...]</code>
+ * </p>
+ */
+public class ScalingHarness {
+
+	private static final int[] DEFAULT_SIZES = { 10, 30, 100, 300, 1000, 3000, 10000, 30000, 100000 };
+
+	private static final long SAMPLE_MILLIS = 10;
+
+	/**
+	 * Constructs and runs the solver on its own thread so that a run which
+	 * exhausts the heap or the stack only ends that run.
+	 */
+	private static class Run implements Runnable {
+		private final ETSPPCInstance instance;
+		private volatile AbstractETSPPC solver;
+		private volatile Throwable failure;
+
+		Run(ETSPPCInstance instance) {
+			this.instance = instance;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (instance.getAllLocations().size() >= DecompositionETSPPC.MIN_CITIES) {
+					solver = new DecompositionETSPPC(instance);
+				} else {
+					solver = new ETSPPC(instance);
+				}
+				solver.run();
+			} catch (Throwable t) {
+				failure = t;
+			}
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		InstanceGenerator.Layout layout = args.length > 0 ? InstanceGenerator.Layout.valueOf(args[0].toUpperCase(Locale.US)) : InstanceGenerator.Layout.UNIFORM;
+		double density = args.length > 1 ? Double.parseDouble(args[1]) : 0.5;
+		long timeout = args.length > 2 ? Long.parseLong(args[2]) : 30000;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+
+		int[] sizes = DEFAULT_SIZES;
+		if (args.length > 4) {
+			sizes = new int[args.length - 4];
+			for (int i = 4; i < args.length; i++) {
+				sizes[i - 4] = Integer.parseInt(args[i]);
+			}
+		}
+
+		System.out.println("n,layout,constraints,status,millis,peakMB,cost,reference,ratio,solver");
+		for (int n : sizes) {
+			ETSPPCInstance instance = new InstanceGenerator(seed).generate(n, layout, density, 1.0);
+			System.out.println(measure(instance, layout, timeout));
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	private static String measure(ETSPPCInstance instance, InstanceGenerator.Layout layout, long timeout) throws InterruptedException {
+		Runtime rt = Runtime.getRuntime();
+		System.gc();
+		long baseline = rt.totalMemory() - rt.freeMemory();
+		long peak = baseline;
+
+		Run run = new Run(new ETSPPCInstance(instance));
+		Thread thread = new Thread(run, "ETSPPC Thread");
+
+		long start = System.currentTimeMillis();
+		thread.start();
+		while (thread.isAlive() && System.currentTimeMillis() - start < timeout) {
+			thread.join(SAMPLE_MILLIS);
+			peak = Math.max(peak, rt.totalMemory() - rt.freeMemory());
+		}
+		boolean timedOut = thread.isAlive();
+		if (timedOut && run.solver instanceof DecompositionETSPPC) {
+			// ends with the best tour so far instead of none
+			((DecompositionETSPPC) run.solver).stop();
+			thread.join();
+		} else if (timedOut) {
+			thread.stop();
+			thread.join();
+		}
+		long millis = System.currentTimeMillis() - start;
+
+		String status;
+		double cost = Double.NaN;
+		if (run.failure != null && !(run.failure instanceof ThreadDeath)) {
+			status = run.failure.getClass().getSimpleName();
+		} else if (run.solver == null || run.solver.getBestSolution() == null) {
+			status = "NO_SOLUTION";
+		} else {
+			AbstractETSPPC.BnBSolution sol = run.solver.getBestSolution();
+			SolutionVerifier.Result check = new SolutionVerifier(instance).verify(sol.getBestSolution(), sol.getUpperBound());
+			cost = check.getObjectiveValue();
+			if (!check.isValid()) status = "INVALID";
+			else status = timedOut ? "TIMEOUT" : "OK";
+		}
+
+		double reference = instance.getThreshold();
+		return String.format(Locale.US, "%d,%s,%d,%s,%d,%.1f,%.2f,%.2f,%.4f,%s", instance.getAllLocations().size(), layout,
+				instance.getConstraints().size(), status, millis, (peak - baseline) / (1024.0 * 1024.0), cost, reference,
+				cost / reference, run.solver == null ? "" : run.solver.getClass().getSimpleName());
+	}
+}
@@ -0,0 +1,219 @@
+package ads2.ss14.etsppc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent state of a branch-and-bound run: the incumbent tour, the search
+ * counters and the frontier of subproblems that have not been explored yet.
+ *
+ * <p>
+ * A subproblem is stored as the fixed tour prefix, the cities excluded by
+ * right branches, the city to branch on next and the depth counter, all
+ * cities by id so that a frame does not depend on the order in which a
+ * solver stores the locations. The frontier is stored in the order in which
+ * the search would process it.
+ * </p>
+ */
+public class SearchCheckpoint {
+
+	private static final int MAGIC = 0x45545350; // "ETSP"
+	private static final int VERSION = 2;
+
+	/**
+	 * An unexplored subproblem of the search tree.
+	 */
+	public static final class Frame {
+		private final int[] tour;
+		private final int[] skipped;
+		private final int node;
+		private final int visited;
+
+		/**
+		 * @param tour      city ids of the fixed tour prefix
+		 * @param skipped   city ids excluded from branching by right branches
+		 * @param node      city id of the city to branch on, -1 if none is left
+		 * @param visited   depth counter of the subproblem
+		 */
+		public Frame(int[] tour, int[] skipped, int node, int visited) {
+			this.tour = tour;
+			this.skipped = skipped;
+			this.node = node;
+			this.visited = visited;
+		}
+
+		public int[] getTour() {
+			return tour;
+		}
+
+		public int[] getSkipped() {
+			return skipped;
+		}
+
+		public int getNode() {
+			return node;
+		}
+
+		public int getVisited() {
+			return visited;
+		}
+	}
+
+	private final long instanceHash;
+	private final double incumbentCost;
+	private final int[] incumbentTour;
+	private final long nodes;
+	private final long improvements;
+	private final List<Frame> frontier;
+
+	/**
+	 * @param instanceHash      {@link ETSPPCInstance#contentHash()} of the instance
+	 * @param incumbentCost     cost of the incumbent tour
+	 * @param incumbentTour     city ids of the incumbent tour
+	 * @param nodes             number of search nodes expanded so far
+	 * @param improvements      number of incumbent updates so far
+	 * @param frontier          unexplored subproblems in processing order
+	 */
+	public SearchCheckpoint(long instanceHash, double incumbentCost, int[] incumbentTour, long nodes, long improvements, List<Frame> frontier) {
+		this.instanceHash = instanceHash;
+		this.incumbentCost = incumbentCost;
+		this.incumbentTour = incumbentTour;
+		this.nodes = nodes;
+		this.improvements = improvements;
+		this.frontier = frontier;
+	}
+
+	public long getInstanceHash() {
+		return instanceHash;
+	}
+
+	public double getIncumbentCost() {
+		return incumbentCost;
+	}
+
+	public int[] getIncumbentTour() {
+		return incumbentTour;
+	}
+
+	public long getNodes() {
+		return nodes;
+	}
+
+	public long getImprovements() {
+		return improvements;
+	}
+
+	public List<Frame> getFrontier() {
+		return frontier;
+	}
+
+	/**
+	 * Replaces <code>file</code> atomically with this checkpoint, see
+	 * {@link AtomicFile#write(File, byte[])}.
+	 *
+	 * @param file      the checkpoint file
+	 * @throws IOException if writing fails
+	 */
+	public void write(File file) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(instanceHash);
+		out.writeDouble(incumbentCost);
+		writeInts(out, incumbentTour);
+		out.writeLong(nodes);
+		out.writeLong(improvements);
+		out.writeInt(frontier.size());
+		for (Frame f : frontier) {
+			out.writeInt(f.node);
+			out.writeInt(f.visited);
+			writeInts(out, f.tour);
+			writeInts(out, f.skipped);
+		}
+		out.flush();
+
+		AtomicFile.write(file, bytes.toByteArray());
+	}
+
+	/**
+	 * @param file      a file written by {@link #write(File)}
+	 * @return          the checkpoint stored in the file
+	 * @throws IOException if the file cannot be read or is not a checkpoint
+	 */
+	public static SearchCheckpoint read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file + " is not a checkpoint of this version");
+			}
+			long hash = in.readLong();
+			double cost = in.readDouble();
+			int[] tour = readInts(in);
+			long nodes = in.readLong();
+			long improvements = in.readLong();
+
+			int size = in.readInt();
+			List<Frame> frontier = new ArrayList<Frame>(size);
+			for (int i = 0; i < size; i++) {
+				int node = in.readInt();
+				int visited = in.readInt();
+				frontier.add(new Frame(readInts(in), readInts(in), node, visited));
+			}
+			return new SearchCheckpoint(hash, cost, tour, nodes, improvements, frontier);
+		} finally {
+			in.close();
+		}
+	}
+
+	static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		out.writeInt(values.length);
+		for (int v : values) {
+			out.writeInt(v);
+		}
+	}
+
+	static int[] readInts(DataInputStream in) throws IOException {
+		int[] values = new int[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	/**
+	 * Runs {@link ETSPPC} on an instance without a time limit and keeps a
+	 * checkpoint up to date. If the checkpoint file already exists, the run
+	 * continues from it.
+	 *
+	 * <p>
+	 * Usage: <code>SearchCheckpoint instance checkpoint [intervalMillis]</code>
+	 * </p>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: SearchCheckpoint <instance> <checkpoint> [intervalMillis]");
+			System.exit(1);
+		}
+
+		ETSPPCInstance instance = new TspLibReader(args[0]).readInstance();
+		File file = new File(args[1]);
+		long interval = args.length > 2 ? Long.parseLong(args[2]) : 10000;
+
+		ETSPPC solver = new ETSPPC(instance);
+		if (file.exists()) {
+			solver.resume(read(file));
+		}
+		solver.enableCheckpoint(file, interval);
+		solver.run();
+
+		System.out.println(solver.getBestSolution().getUpperBound());
+	}
+}
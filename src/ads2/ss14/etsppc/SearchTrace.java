@@ -0,0 +1,197 @@
+package ads2.ss14.etsppc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Records the nodes of a branch-and-bound search as fixed-size binary
+ * records in a memory-mapped ring file. Recording a node is a few stores
+ * into the mapping, the operating system writes them back to the file.
+ * Once the ring is full, the oldest records are overwritten.
+ *
+ * <p>
+ * The file starts with a header of {@link #HEADER} bytes: magic, version,
+ * record size and capacity as ints, then the number of records written so
+ * far as a long. Each record holds node id and parent id as longs, prefix
+ * cost and bound as doubles, depth as an unsigned short, outcome as a byte,
+ * one byte of padding and the city id as an int.
+ * </p>
+ *
+ * <p>
+ * Usage: <code>SearchTrace trace [instance [seconds] [records]]</code> records
+ * a search of the instance if one is given and prints a CSV summary of the
+ * trace by depth.
+ * </p>
+ */
+public class SearchTrace {
+
+	private static final int MAGIC = 0x45545452; // "ETTR"
+	private static final int VERSION = 1;
+	private static final int HEADER = 64;
+	private static final int RECORD = 40;
+	private static final int COUNT_OFFSET = 16;
+
+	/** the city was appended to the prefix and the subtree below is searched */
+	public static final byte EXPANDED = 0;
+	/** as {@link #EXPANDED}, and the completion became the best tour */
+	public static final byte INCUMBENT = 1;
+	/** the completion is not better than the best tour */
+	public static final byte PRUNED = 2;
+	/** a predecessor of the city is not in the prefix yet */
+	public static final byte INFEASIBLE = 3;
+	/** no city is left to branch on, the search backtracks */
+	public static final byte EXHAUSTED = 4;
+
+	private static final String[] OUTCOMES = { "expanded", "incumbent", "pruned", "infeasible", "exhausted" };
+
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private long written;
+
+	/**
+	 * Creates or truncates the trace file.
+	 *
+	 * @param file          the trace file
+	 * @param capacity      number of records kept
+	 */
+	public SearchTrace(File file, int capacity) throws IOException {
+		if (capacity <= 0 || capacity > (Integer.MAX_VALUE - HEADER) / RECORD) {
+			throw new IllegalArgumentException("capacity " + capacity + " out of range");
+		}
+		this.capacity = capacity;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			// the mapping stays valid after the channel is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * RECORD);
+		} finally {
+			raf.close();
+		}
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, RECORD);
+		buffer.putInt(12, capacity);
+		buffer.putLong(COUNT_OFFSET, 0);
+	}
+
+	/**
+	 * Appends a record, overwriting the oldest one if the ring is full.
+	 */
+	public void record(long node, long parent, int depth, int city, double prefixCost, double bound, byte outcome) {
+		int offset = HEADER + (int) (written % capacity) * RECORD;
+		buffer.putLong(offset, node);
+		buffer.putLong(offset + 8, parent);
+		buffer.putDouble(offset + 16, prefixCost);
+		buffer.putDouble(offset + 24, bound);
+		buffer.putChar(offset + 32, (char) Math.min(depth, Character.MAX_VALUE));
+		buffer.put(offset + 34, outcome);
+		buffer.putInt(offset + 36, city);
+		written++;
+	}
+
+	/**
+	 * Stores the record count in the header and writes the mapping to disk.
+	 */
+	public void flush() {
+		buffer.putLong(COUNT_OFFSET, written);
+		buffer.force();
+	}
+
+	/**
+	 * Prints one CSV line per depth with the number of records of each
+	 * outcome, the share of pruned nodes among those with a computed bound
+	 * and the average prefix cost and bound.
+	 *
+	 * @param file      a trace file
+	 */
+	public static void summarize(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer in;
+		try {
+			in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if (in.capacity() < HEADER || in.getInt(0) != MAGIC || in.getInt(4) != VERSION || in.getInt(8) != RECORD) {
+			throw new IOException(file + " is not a search trace of this version");
+		}
+		int capacity = in.getInt(12);
+		long written = in.getLong(COUNT_OFFSET);
+		int records = (int) Math.min(written, capacity);
+
+		int maxDepth = 0;
+		for (int r = 0; r < records; r++) {
+			maxDepth = Math.max(maxDepth, in.getChar(HEADER + r * RECORD + 32));
+		}
+		long[][] counts = new long[maxDepth + 1][OUTCOMES.length];
+		double[] prefixSum = new double[maxDepth + 1];
+		double[] boundSum = new double[maxDepth + 1];
+		long[] bounded = new long[maxDepth + 1];
+		for (int r = 0; r < records; r++) {
+			int offset = HEADER + r * RECORD;
+			int depth = in.getChar(offset + 32);
+			int outcome = in.get(offset + 34);
+			if (outcome < 0 || outcome >= OUTCOMES.length) continue;
+			counts[depth][outcome]++;
+			prefixSum[depth] += in.getDouble(offset + 16);
+			double bound = in.getDouble(offset + 24);
+			if (!Double.isNaN(bound) && bound < Double.POSITIVE_INFINITY) {
+				boundSum[depth] += bound;
+				bounded[depth]++;
+			}
+		}
+
+		System.out.println("# " + written + " records written, " + records + " kept");
+		StringBuilder head = new StringBuilder("depth,nodes");
+		for (String o : OUTCOMES) {
+			head.append(',').append(o);
+		}
+		System.out.println(head.append(",pruneRate,meanPrefix,meanBound"));
+		for (int d = 0; d <= maxDepth; d++) {
+			long nodes = 0;
+			for (long c : counts[d]) {
+				nodes += c;
+			}
+			if (nodes == 0) continue;
+
+			StringBuilder line = new StringBuilder().append(d).append(',').append(nodes);
+			for (long c : counts[d]) {
+				line.append(',').append(c);
+			}
+			long tested = counts[d][EXPANDED] + counts[d][INCUMBENT] + counts[d][PRUNED];
+			line.append(String.format(Locale.US, ",%.4f,%.2f,%.2f", tested == 0 ? 0.0 : (double) counts[d][PRUNED] / tested,
+					prefixSum[d] / nodes, bounded[d] == 0 ? Double.NaN : boundSum[d] / bounded[d]));
+			System.out.println(line);
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("usage: SearchTrace <trace> [<instance> [seconds] [records]]");
+			System.exit(1);
+		}
+		File file = new File(args[0]);
+
+		if (args.length > 1) {
+			ETSPPCInstance instance = new TspLibReader(args[1]).readInstance();
+			long seconds = args.length > 2 ? Long.parseLong(args[2]) : 10;
+			int records = args.length > 3 ? Integer.parseInt(args[3]) : 1 << 20;
+
+			ETSPPC solver = new ETSPPC(instance);
+			solver.enableTrace(new SearchTrace(file, records));
+			Thread thread = new Thread(solver, "ETSPPC Thread");
+			thread.start();
+			thread.join(seconds * 1000);
+			solver.stop();
+			thread.join();
+		}
+
+		summarize(file);
+	}
+}
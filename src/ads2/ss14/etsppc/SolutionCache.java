@@ -0,0 +1,150 @@
+package ads2.ss14.etsppc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of the best known tour per instance, keyed by
+ * {@link ETSPPCInstance#contentHash()}. Instances that differ only in their
+ * threshold share an entry.
+ *
+ * <p>
+ * Each entry is a small file in the cache directory. Lookups refresh the
+ * modification time of an entry, and when the directory grows beyond its
+ * size limit the least recently used entries are deleted.
+ * </p>
+ */
+public class SolutionCache {
+
+	private static final int MAGIC = 0x45545343; // "ETSC"
+	private static final String SUFFIX = ".tour";
+
+	private final File dir;
+	private final long maxBytes;
+
+	/**
+	 * @param dir           the cache directory, created if necessary
+	 * @param maxBytes      upper limit for the total size of all entries
+	 */
+	public SolutionCache(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		dir.mkdirs();
+	}
+
+	private File fileFor(long hash) {
+		return new File(dir, String.format("%016x", hash) + SUFFIX);
+	}
+
+	/**
+	 * @param hash      content hash of the instance
+	 * @return          city ids of the cached tour, or null on a miss
+	 */
+	public synchronized int[] lookup(long hash) {
+		File file = fileFor(hash);
+		if (!file.exists()) return null;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readLong() != hash) return null;
+				in.readDouble();
+				int[] tour = SearchCheckpoint.readInts(in);
+				file.setLastModified(System.currentTimeMillis());
+				return tour;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Main.printDebug("unreadable cache entry " + file + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a tour unless the cache already holds one that is at least as
+	 * good.
+	 *
+	 * @param hash      content hash of the instance
+	 * @param cost      cost of the tour
+	 * @param tour      city ids of the tour
+	 */
+	public synchronized void store(long hash, double cost, int[] tour) {
+		File file = fileFor(hash);
+		try {
+			if (file.exists() && cachedCost(file, hash) <= cost) {
+				file.setLastModified(System.currentTimeMillis());
+				return;
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeLong(hash);
+			out.writeDouble(cost);
+			SearchCheckpoint.writeInts(out, tour);
+			out.flush();
+
+			AtomicFile.write(file, bytes.toByteArray());
+		} catch (IOException e) {
+			Main.printDebug("could not cache " + file + ": " + e);
+			return;
+		}
+		evict(file);
+	}
+
+	private static double cachedCost(File file, long hash) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readLong() != hash) return Double.POSITIVE_INFINITY;
+				return in.readDouble();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return Double.POSITIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * Deletes least recently used entries until the cache fits its limit.
+	 *
+	 * @param keep      the entry that was just written
+	 */
+	private void evict(File keep) {
+		File[] entries = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.getName().endsWith(SUFFIX);
+			}
+		});
+		if (entries == null) return;
+
+		long total = 0;
+		for (File f : entries) {
+			total += f.length();
+		}
+
+		Arrays.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+
+		for (int i = 0; i < entries.length && total > maxBytes; i++) {
+			if (entries[i].equals(keep)) continue;
+			long length = entries[i].length();
+			if (entries[i].delete()) total -= length;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package ads2.ss14.etsppc;
+
+import java.util.List;
+
+/**
+ * Receives every improvement of the incumbent of a solver.
+ */
+public interface SolutionListener {
+
+	/**
+	 * Called on the search thread right after the solution was set.
+	 *
+	 * @param cost      cost of the new incumbent
+	 * @param tour      the new incumbent, must not be modified
+	 */
+	void improved(double cost, List<Location> tour);
+}
@@ -0,0 +1,152 @@
+package ads2.ss14.etsppc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks a tour against an instance in O(n + m): completeness, duplicates,
+ * precedence constraints and the reported objective value.
+ */
+public class SolutionVerifier {
+
+	private final ETSPPCInstance instance;
+
+	/** Locations of the instance indexed by city id */
+	private final Location[] byId;
+
+	public SolutionVerifier(ETSPPCInstance instance) {
+		this.instance = instance;
+
+		int maxId = 0;
+		for (Integer id : instance.getAllLocations().keySet()) {
+			maxId = Math.max(maxId, id);
+		}
+		byId = new Location[maxId + 1];
+		for (Location l : instance.getAllLocations().values()) {
+			byId[l.getCityId()] = l;
+		}
+	}
+
+	/**
+	 * Outcome of a verification, lists every violation that was found.
+	 */
+	public static final class Result {
+		private final List<String> violations = new ArrayList<String>();
+		private boolean tourIncomplete;
+		private boolean constraintViolated;
+		private boolean objectiveMismatch;
+		private double objectiveValue;
+
+		public boolean isValid() {
+			return violations.isEmpty();
+		}
+
+		/**
+		 * @return true if locations are missing, unknown or visited twice
+		 */
+		public boolean isTourIncomplete() {
+			return tourIncomplete;
+		}
+
+		public boolean isConstraintViolated() {
+			return constraintViolated;
+		}
+
+		public boolean isObjectiveMismatch() {
+			return objectiveMismatch;
+		}
+
+		/**
+		 * @return the tour cost as computed by {@link SolutionVerifier#objectiveValue(List)}
+		 */
+		public double getObjectiveValue() {
+			return objectiveValue;
+		}
+
+		public List<String> getViolations() {
+			return violations;
+		}
+	}
+
+	/**
+	 * @param solution      the tour to check
+	 * @param upperBound    the reported cost, must equal the tour cost exactly
+	 * @return              all violations found
+	 */
+	public Result verify(List<Location> solution, double upperBound) {
+		Result result = new Result();
+
+		// position of each city id in the tour, -1 if not visited
+		int[] position = new int[byId.length];
+		for (int i = 0; i < position.length; i++) {
+			position[i] = -1;
+		}
+
+		int index = 0;
+		for (Location c : solution) {
+			int id = c.getCityId();
+			if (id < 0 || id >= byId.length || byId[id] == null || !byId[id].equals(c)) {
+				result.tourIncomplete = true;
+				result.violations.add("Unbekannte Location '" + c + "' an Position " + index);
+			} else if (position[id] >= 0) {
+				result.tourIncomplete = true;
+				result.violations.add("'" + c + "' wird doppelt besucht (Positionen " + position[id] + " und " + index + ")");
+			} else {
+				position[id] = index;
+			}
+			index++;
+		}
+
+		for (Location l : instance.getAllLocations().values()) {
+			if (position[l.getCityId()] < 0) {
+				result.tourIncomplete = true;
+				result.violations.add("'" + l + "' wird nicht besucht");
+			}
+		}
+
+		for (PrecedenceConstraint pc : instance.getConstraints()) {
+			int first = positionOf(position, pc.getFirst());
+			int second = positionOf(position, pc.getSecond());
+			if (first >= second) {
+				result.constraintViolated = true;
+				result.violations.add("Das Precedence Constraint '" + pc.getFirst() + " vor " + pc.getSecond() + "' wurde nicht erfuellt!");
+			}
+		}
+
+		result.objectiveValue = objectiveValue(solution);
+		if (result.objectiveValue != upperBound) {
+			result.objectiveMismatch = true;
+			result.violations.add("Die obere Schanke " + upperBound + " ist ungleich der Kosten der Tour " + result.objectiveValue);
+		}
+
+		return result;
+	}
+
+	private static int positionOf(int[] position, int id) {
+		return id >= 0 && id < position.length ? position[id] : -1;
+	}
+
+	/**
+	 * Cost of the closed tour, summed in tour order so that the result is
+	 * bit-identical for every caller.
+	 *
+	 * @param solution      the tour
+	 * @return              sum of all edge lengths including the closing edge
+	 */
+	public static double objectiveValue(List<Location> solution) {
+		double sumDistance = 0;
+		Location last = null;
+		for (Location c : solution) {
+			if (last != null) {
+				sumDistance += last.distanceTo(c);
+			}
+			last = c;
+		}
+
+		if (last != null && solution.get(0) != last) {
+			sumDistance += last.distanceTo(solution.get(0));
+		}
+
+		return sumDistance;
+	}
+}
@@ -0,0 +1,323 @@
+package ads2.ss14.etsppc;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resident solver service, avoids JVM start-up and warm-up per instance.
+ *
+ * <p>
+ * Clients connect over loopback and send requests of the form
+ * </p>
+ *
+ * <pre>
+ * SOLVE &lt;deadlineMillis&gt;
+ * &lt;instance in TSPLIB format, terminated by EOF&gt;
+ * </pre>
+ *
+ * <p>
+ * and receive <code>INCUMBENT &lt;cost&gt; &lt;ids&gt;</code> lines as the solution
+ * improves, followed by a final <code>DONE &lt;cost&gt; &lt;ids&gt;</code> or an
+ * <code>ERROR &lt;message&gt;</code>. Several requests may be sent over one
+ * connection. Requests wait in a bounded queue and are scheduled onto a
+ * fixed number of solver threads earliest deadline first; the deadline
+ * counts from the moment the request was received. Distance matrices of
+ * recently solved instances are kept and reused for identical instances.
+ * With a {@link SolutionCache}, repeated instances start from the best tour
+ * found for them before.
+ * </p>
+ */
+public class SolveService {
+
+	/** memory kept for distance matrices, a 2000 city matrix takes 32 MB */
+	private static final long MATRIX_CACHE_BYTES = 128L * 1024 * 1024;
+
+	private static final long CACHE_BYTES = 64L * 1024 * 1024;
+
+	private final int queueCapacity;
+	private final SolutionCache cache;
+	private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<Job>();
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+	private final ExecutorService connections = Executors.newCachedThreadPool();
+	private final AtomicLong sequence = new AtomicLong();
+
+	/** distance matrices by content hash, least recently used first */
+	private final Map<Long, double[][]> matrices = new LinkedHashMap<Long, double[][]>(16, 0.75f, true);
+	/** memory taken by the matrices, guarded by matrices */
+	private long matrixBytes;
+
+	/**
+	 * A queued request, ordered by deadline and then by arrival.
+	 */
+	private static final class Job implements Comparable<Job> {
+		final ETSPPCInstance instance;
+		final long deadline;
+		final long seq;
+		final PrintWriter out;
+		final CountDownLatch done = new CountDownLatch(1);
+
+		Job(ETSPPCInstance instance, long deadline, long seq, PrintWriter out) {
+			this.instance = instance;
+			this.deadline = deadline;
+			this.seq = seq;
+			this.out = out;
+		}
+
+		@Override
+		public int compareTo(Job o) {
+			if (deadline != o.deadline) return deadline < o.deadline ? -1 : 1;
+			return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+		}
+	}
+
+	/**
+	 * @param threads           number of concurrently running solvers
+	 * @param queueCapacity     maximum number of waiting requests
+	 * @param cache             warm-starts repeated instances, may be null
+	 */
+	public SolveService(int threads, int queueCapacity, SolutionCache cache) {
+		this.queueCapacity = queueCapacity;
+		this.cache = cache;
+
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						Job job;
+						try {
+							job = queue.take();
+						} catch (InterruptedException e) {
+							return;
+						}
+						solve(job);
+					}
+				}
+			}, "ETSPPC Service " + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Accepts clients until the process is terminated.
+	 *
+	 * @param port      the loopback port to listen on, 0 for any
+	 */
+	public void serve(int port) throws IOException {
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		System.out.println("listening on " + server.getLocalPort());
+
+		while (true) {
+			final Socket socket = server.accept();
+			connections.execute(new Runnable() {
+				@Override
+				public void run() {
+					handle(socket);
+				}
+			});
+		}
+	}
+
+	private void handle(Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "US-ASCII"));
+
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				String[] header = line.trim().split("\\s+");
+				if (header.length != 2 || !header[0].equals("SOLVE")) {
+					if (line.trim().isEmpty()) continue;
+					send(out, "ERROR expected SOLVE <deadlineMillis>");
+					break;
+				}
+
+				long received = System.currentTimeMillis();
+				long deadline;
+				try {
+					deadline = received + Long.parseLong(header[1]);
+				} catch (NumberFormatException e) {
+					send(out, "ERROR malformed deadline: " + header[1]);
+					break;
+				}
+
+				ETSPPCInstance instance;
+				try {
+					instance = TspLibReader.readInstance(in);
+				} catch (EOFException e) {
+					send(out, "ERROR truncated instance: " + e.getMessage());
+					break;
+				} catch (NumberFormatException e) {
+					send(out, "ERROR malformed instance: " + e);
+					break;
+				} catch (IllegalArgumentException e) {
+					send(out, "ERROR " + e.getMessage());
+					break;
+				} catch (RuntimeException e) {
+					send(out, "ERROR malformed instance: " + e);
+					break;
+				}
+
+				Job job = new Job(instance, deadline, sequence.incrementAndGet(), out);
+				if (!enqueue(job)) {
+					send(out, "ERROR queue full");
+					continue;
+				}
+				job.done.await();
+			}
+		} catch (Exception e) {
+			Main.printDebug("client " + socket.getRemoteSocketAddress() + " failed: " + e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Queues a request unless <code>queueCapacity</code> requests are waiting
+	 * already. The check and the insertion are atomic, concurrent connections
+	 * cannot exceed the capacity.
+	 *
+	 * @return      false if the queue is full
+	 */
+	private boolean enqueue(Job job) {
+		synchronized (queue) {
+			if (queue.size() >= queueCapacity) return false;
+			queue.put(job);
+			return true;
+		}
+	}
+
+	private void solve(final Job job) {
+		try {
+			long remaining = job.deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				send(job.out, "ERROR deadline expired while queued");
+				return;
+			}
+
+			final ETSPPC solver = new ETSPPC(job.instance, matrixFor(job.instance));
+			cacheMatrix(job.instance, solver.getDistanceMatrix());
+			if (cache != null) solver.useCache(cache);
+
+			AbstractETSPPC.BnBSolution initial = solver.getBestSolution();
+			send(job.out, "INCUMBENT " + format(initial.getUpperBound(), initial.getBestSolution()));
+			solver.setSolutionListener(new SolutionListener() {
+				@Override
+				public void improved(double cost, List<Location> tour) {
+					send(job.out, "INCUMBENT " + format(cost, tour));
+				}
+			});
+
+			ScheduledFuture<?> stop = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					solver.stop();
+				}
+			}, Math.max(0, job.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+			solver.run();
+			stop.cancel(false);
+
+			AbstractETSPPC.BnBSolution best = solver.getBestSolution();
+			send(job.out, "DONE " + format(best.getUpperBound(), best.getBestSolution()));
+		} catch (Exception e) {
+			send(job.out, "ERROR " + e);
+		} catch (OutOfMemoryError e) {
+			send(job.out, "ERROR " + e);
+		} finally {
+			job.done.countDown();
+		}
+	}
+
+	private double[][] matrixFor(ETSPPCInstance instance) {
+		synchronized (matrices) {
+			return matrices.get(instance.contentHash());
+		}
+	}
+
+	/**
+	 * Keeps a matrix, dropping the least recently used ones while the cache
+	 * takes more than {@link #MATRIX_CACHE_BYTES}.
+	 */
+	private void cacheMatrix(ETSPPCInstance instance, double[][] matrix) {
+		if (matrix == null) return;
+		long bytes = bytes(matrix);
+		if (bytes > MATRIX_CACHE_BYTES) return;
+
+		synchronized (matrices) {
+			double[][] old = matrices.put(instance.contentHash(), matrix);
+			if (old != null) matrixBytes -= bytes(old);
+			matrixBytes += bytes;
+
+			for (Iterator<double[][]> it = matrices.values().iterator(); matrixBytes > MATRIX_CACHE_BYTES;) {
+				matrixBytes -= bytes(it.next());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return      the approximate heap size of a matrix, with 16 bytes per array header
+	 */
+	private static long bytes(double[][] matrix) {
+		long bytes = 16 + 8L * matrix.length;
+		for (double[] row : matrix) {
+			bytes += 16 + 8L * row.length;
+		}
+		return bytes;
+	}
+
+	private static String format(double cost, List<Location> tour) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(cost);
+		for (Location l : tour) {
+			sb.append(' ').append(l.getCityId());
+		}
+		return sb.toString();
+	}
+
+	private static void send(PrintWriter out, String line) {
+		synchronized (out) {
+			out.print(line);
+			out.print('\n');
+			out.flush();
+		}
+	}
+
+	/**
+	 * Usage: <code>SolveService [port] [threads] [queueCapacity] [cacheDir]</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+		SolutionCache cache = args.length > 3 ? new SolutionCache(new File(args[3]), CACHE_BYTES) : null;
+
+		new SolveService(threads, capacity, cache).serve(port);
+	}
+}
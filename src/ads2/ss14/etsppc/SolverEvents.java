@@ -0,0 +1,115 @@
+package ads2.ss14.etsppc;
+
+/**
+ * JDK Flight Recorder events of the solvers.
+ *
+ * <p>
+ * The events themselves are declared in <code>JfrRecorder</code> under
+ * <code>jfr/</code>, which needs <code>jdk.jfr</code> and is compiled
+ * separately after the solvers, e.g.
+ * <code>javac -cp out -d out jfr/ads2/ss14/etsppc/*.java</code>. If it is
+ * missing or cannot be loaded, e.g. because {@link Main} runs the solver
+ * under its security manager, the static methods of this class do nothing.
+ * </p>
+ *
+ * <p>
+ * All events are disabled by default. The settings file
+ * <code>jfr/ads2/ss14/etsppc/etsppc.jfc</code> enables them, e.g. with
+ * <code>-XX:StartFlightRecording=settings=default,settings=jfr/ads2/ss14/etsppc/etsppc.jfc,filename=etsppc.jfr</code>.
+ * </p>
+ */
+public final class SolverEvents {
+
+	/** Phases reported by {@link #endPhase(Object, Object, String, int)} */
+	public static final String MATRIX = "matrix";
+	public static final String CONSTRUCTION = "construction";
+	public static final String BRANCH_AND_BOUND = "branch and bound";
+	public static final String LOCAL_SEARCH = "local search";
+	public static final String DECOMPOSITION = "decomposition";
+
+	/**
+	 * Commits the events, implemented by <code>JfrRecorder</code>. The begin
+	 * methods return null if the event is not enabled.
+	 */
+	abstract static class Recorder {
+		abstract void incumbent(String solver, double cost, double previous, int cities);
+
+		abstract Object beginPhase();
+
+		abstract void endPhase(Object event, String solver, String phase, int cities);
+
+		abstract boolean isProgressEnabled();
+
+		abstract void progress(long nodes, double nodesPerSecond, int depth, int prefix, double incumbent, double gap);
+
+		abstract Object beginParse();
+
+		abstract void endParse(Object event, String source, int cities, int constraints);
+	}
+
+	/** null if the events are not available */
+	private static final Recorder RECORDER = load();
+
+	private SolverEvents() {
+	}
+
+	private static Recorder load() {
+		try {
+			return (Recorder) Class.forName(SolverEvents.class.getPackage().getName() + ".JfrRecorder").newInstance();
+		} catch (ReflectiveOperationException e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		} catch (SecurityException e) {
+			return null;
+		}
+	}
+
+	static void incumbent(Object solver, double cost, double previous, int cities) {
+		if (RECORDER != null) RECORDER.incumbent(solver.getClass().getSimpleName(), cost, previous, cities);
+	}
+
+	/**
+	 * @return      the started event, or null
+	 */
+	static Object beginPhase() {
+		return RECORDER == null ? null : RECORDER.beginPhase();
+	}
+
+	/**
+	 * @param event     returned by {@link #beginPhase()}
+	 */
+	static void endPhase(Object event, Object solver, String phase, int cities) {
+		if (event != null) RECORDER.endPhase(event, solver.getClass().getSimpleName(), phase, cities);
+	}
+
+	/**
+	 * @return      true if {@link #progress(long, double, int, int, double, double)} records anything
+	 */
+	static boolean isProgressEnabled() {
+		return RECORDER != null && RECORDER.isProgressEnabled();
+	}
+
+	/**
+	 * A sample of a running branch-and-bound search.
+	 *
+	 * @param gap       distance of the incumbent from a simple lower bound, relative to the incumbent
+	 */
+	static void progress(long nodes, double nodesPerSecond, int depth, int prefix, double incumbent, double gap) {
+		if (RECORDER != null) RECORDER.progress(nodes, nodesPerSecond, depth, prefix, incumbent, gap);
+	}
+
+	/**
+	 * @return      the started event, or null
+	 */
+	static Object beginParse() {
+		return RECORDER == null ? null : RECORDER.beginParse();
+	}
+
+	/**
+	 * @param event     returned by {@link #beginParse()}
+	 */
+	static void endParse(Object event, String source, ETSPPCInstance instance) {
+		if (event != null) RECORDER.endParse(event, source, instance.getAllLocations().size(), instance.getConstraints().size());
+	}
+}
@@ -1,6 +1,7 @@
 package ads2.ss14.etsppc;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -29,27 +30,59 @@ public class TspLibReader {
 	
 	public ETSPPCInstance readInstance() throws IOException {
 		BufferedReader reader = new BufferedReader(new FileReader(filePath));
-		
+		try {
+			return readInstance(reader, filePath);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads one instance from <code>reader</code>. Reading stops at the first
+	 * line after the precedence section (e.g. <code>EOF</code>), so several
+	 * instances can be read from the same stream. The reader is not closed.
+	 *
+	 * @param reader	the source of the instance
+	 * @return the instance
+	 * @throws IOException if reading fails or the input ends early
+	 * @throws IllegalArgumentException if a constraint refers to an unknown city
+	 */
+	public static ETSPPCInstance readInstance(BufferedReader reader) throws IOException {
+		return readInstance(reader, "stream");
+	}
+
+	/**
+	 * Reads an instance and reports the time it took as a parse event, see
+	 * {@link SolverEvents}.
+	 */
+	private static ETSPPCInstance readInstance(BufferedReader reader, String source) throws IOException {
+		Object event = SolverEvents.beginParse();
+		ETSPPCInstance instance = parse(reader);
+		SolverEvents.endParse(event, source, instance);
+		return instance;
+	}
+
+	private static ETSPPCInstance parse(BufferedReader reader) throws IOException {
 		Matcher m;
 		String line;
-		for(line = reader.readLine(), m = DIMENSION_PATTERN.matcher(line); !m.matches(); line = reader.readLine(), m = DIMENSION_PATTERN.matcher(line)) {
+		for(line = nextLine(reader), m = DIMENSION_PATTERN.matcher(line); !m.matches(); line = nextLine(reader), m = DIMENSION_PATTERN.matcher(line)) {
 		}
 		
 		int numCities = Integer.parseInt(m.group(1));
 		
-		for(m = THRESHOLD_PATTERN.matcher(line); !m.matches(); line = reader.readLine(), m = THRESHOLD_PATTERN.matcher(line)) {
+		for(m = THRESHOLD_PATTERN.matcher(line); !m.matches(); line = nextLine(reader), m = THRESHOLD_PATTERN.matcher(line)) {
 		}
 		
 		double threshold = Double.parseDouble(m.group(1));
 		
-		for(;!line.equals(CITY_HEADER); line = reader.readLine()) {
+		for(;!line.equals(CITY_HEADER); line = nextLine(reader)) {
 		}
 		
 		Map<Integer, Location> allCities = new HashMap<Integer, Location>(numCities);
 		int id;
 		double x, y;
 		
-		for(line = reader.readLine(), m = CITY_PATTERN.matcher(line); m.matches(); line = reader.readLine(), m = CITY_PATTERN.matcher(line)) {
+		for(line = nextLine(reader), m = CITY_PATTERN.matcher(line); m.matches(); line = nextLine(reader), m = CITY_PATTERN.matcher(line)) {
 			id = Integer.parseInt(m.group(1));
 			x = Double.parseDouble(m.group(2));
 			y = Double.parseDouble(m.group(4));
@@ -57,19 +90,28 @@ public class TspLibReader {
 			allCities.put(id, new Location(id, x, y));
 		}
 		
-		for(; !line.equals(PRECEDENCE_HEADER); line = reader.readLine()) {
+		for(; !line.equals(PRECEDENCE_HEADER); line = nextLine(reader)) {
 		}
 		
 		List<PrecedenceConstraint> constraints = new ArrayList<PrecedenceConstraint>();
 		int a, b;
-		for(line = reader.readLine(), m = PRECEDENCE_PATTERN.matcher(line); m.matches(); line = reader.readLine(), m = PRECEDENCE_PATTERN.matcher(line)) {
+		for(line = nextLine(reader), m = PRECEDENCE_PATTERN.matcher(line); m.matches(); line = nextLine(reader), m = PRECEDENCE_PATTERN.matcher(line)) {
 			a = Integer.parseInt(m.group(1));
 			b = Integer.parseInt(m.group(2));
+			if (!allCities.containsKey(a)) throw new IllegalArgumentException("unknown city id " + a);
+			if (!allCities.containsKey(b)) throw new IllegalArgumentException("unknown city id " + b);
 			
 			constraints.add(new PrecedenceConstraint(a, b));
 		}
 		
-		reader.close();
 		return new ETSPPCInstance(allCities, constraints, threshold);
 	}
+
+	private static String nextLine(BufferedReader reader) throws IOException {
+		String line = reader.readLine();
+		if (line == null) {
+			throw new EOFException("unexpected end of instance");
+		}
+		return line;
+	}
 }